@@ -3,10 +3,25 @@ package org.janelia.saalfeldlab.n5.s3;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 import org.janelia.saalfeldlab.n5.KeyValueAccess;
 import org.janelia.saalfeldlab.n5.N5Exception;
@@ -21,16 +36,68 @@ import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
+/**
+ * A {@link KeyValueAccess} for an {@link S3Client}.
+ * <p>
+ * Parallel operations such as {@link #listRecursive(String, int)}, copies,
+ * deletes and write-behind uploads run on platform threads, or on virtual
+ * threads on Java 21+ if the system property {@code n5.s3.virtualThreads}
+ * is {@code true}. The parallelism arguments bound the number of concurrent
+ * requests in both cases.
+ */
 public class AmazonS3KeyValueAccess implements KeyValueAccess {
 
+	/**
+	 * The default number of concurrent reads submitted with
+	 * {@link #submitRead(String, ReadPriority)}.
+	 */
+	public static final int DEFAULT_READ_PARALLELISM = 16;
+
+	/**
+	 * How {@link #createDirectories(String)} creates the zero-byte marker
+	 * objects of directories.
+	 */
+	public enum DirectoryMarkers {
+
+		/**
+		 * Write a marker for every path component.
+		 */
+		ALWAYS,
+
+		/**
+		 * Write markers only for path components that have none yet.
+		 * Markers that this instance has written or found are not checked
+		 * again until they are deleted through this instance.
+		 */
+		IF_MISSING,
+
+		/**
+		 * Write no markers. Directories exist implicitly as long as there
+		 * are objects under their prefix, which {@link #isDirectory(String)}
+		 * answers with a listing. Directories without any objects, e.g.
+		 * groups without attributes, do not exist in this mode.
+		 */
+		NONE
+	}
+
 	private final S3Client s3;
 	private final URI containerURI;
 	private final String bucketName;
 	private S3IoPolicy ioPolicy;
 
+	private DirectoryMarkers directoryMarkers = DirectoryMarkers.ALWAYS;
+	/* markers known to exist, written or checked by this instance */
+	private final Set<String> knownMarkers = ConcurrentHashMap.newKeySet();
+	private ExecutorService markerExecutor = null;
+
+	private S3ReadScheduler readScheduler = null;
+	private volatile PrefetchBuffer prefetchBuffer = null;
+
 	private final boolean createBucket;
 	private Boolean bucketCheckedAndExists = null;
 
+	private CompletableFuture<Void> prewarm = CompletableFuture.completedFuture(null);
+
 	/**
 	 * Opens an {@link AmazonS3KeyValueAccess} using an {@link S3Client} client and a given bucket name.
 	 * <p>
@@ -64,6 +131,26 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 	 */
 	public AmazonS3KeyValueAccess(final S3Client s3, final URI containerURI, final boolean createBucket) throws N5Exception.N5IOException {
 
+		this(s3, containerURI, createBucket, 0);
+	}
+
+	/**
+	 * Opens an {@link AmazonS3KeyValueAccess} using an {@link S3Client} client and a given bucket name,
+	 * and pre-establishes {@code prewarmConnections} pooled connections in the background,
+	 * see {@link #prewarmConnections(int)} and {@link #getPrewarm()}.
+	 * <p>
+	 * If the bucket does not exist and {@code createBucket==true}, the bucket will be created.
+	 * If the bucket does not exist and {@code createBucket==false}, the bucket will not be
+	 * created and all subsequent attempts to read attributes, groups, or datasets will fail.
+	 *
+	 * @param s3                   the s3 instance
+	 * @param containerURI         the URI that points to the n5 container root.
+	 * @param createBucket         whether {@code bucketName} should be created if it doesn't exist
+	 * @param prewarmConnections   the number of connections to establish at open time, 0 to disable
+	 * @throws N5Exception.N5IOException if the access could not be created
+	 */
+	public AmazonS3KeyValueAccess(final S3Client s3, final URI containerURI, final boolean createBucket, final int prewarmConnections) throws N5Exception.N5IOException {
+
 		this.s3 = s3;
 		this.containerURI = containerURI;
 
@@ -81,12 +168,232 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 						"Bucket " + bucketName + " does not exist, and you told me not to create one.");
 			}
 		}
+
+		prewarm = prewarmConnections(prewarmConnections);
 	}
 
 	public void setIoPolicy(S3IoPolicy ioPolicy) {
 		this.ioPolicy = ioPolicy;
 	}
 
+	public S3IoPolicy getIoPolicy() {
+		return ioPolicy;
+	}
+
+	/**
+	 * Set how {@link #createDirectories(String)} creates directory markers.
+	 * The default is {@link DirectoryMarkers#ALWAYS}. Markers of all path
+	 * components are written or checked concurrently.
+	 *
+	 * @param directoryMarkers the mode
+	 */
+	public void setDirectoryMarkers(final DirectoryMarkers directoryMarkers) {
+
+		this.directoryMarkers = directoryMarkers;
+	}
+
+	public DirectoryMarkers getDirectoryMarkers() {
+
+		return directoryMarkers;
+	}
+
+	/**
+	 * Upload writes asynchronously with a {@link WriteBehindIoPolicy} wrapping
+	 * the current policy.
+	 * <p>
+	 * Call {@link #flush()} or {@link #close()} to wait for pending uploads
+	 * and to learn about upload failures.
+	 *
+	 * @param maxPendingBytes the maximum number of bytes waiting for upload
+	 * @param numWorkers the number of concurrent uploads
+	 */
+	public void enableWriteBehind(final long maxPendingBytes, final int numWorkers) {
+
+		setIoPolicy(new WriteBehindIoPolicy(ioPolicy, maxPendingBytes, numWorkers));
+	}
+
+	/**
+	 * Upload writes asynchronously with a {@link StagedWriteBehindIoPolicy}
+	 * wrapping the current policy. Pending objects are persisted in
+	 * {@code stagingDirectory}, objects left there by a previous process are
+	 * uploaded again.
+	 *
+	 * @param stagingDirectory the local directory for pending objects
+	 * @param maxPendingBytes the maximum number of bytes waiting for upload
+	 * @param numWorkers the number of concurrent uploads
+	 * @throws N5IOException if the staging directory could not be used
+	 */
+	public void enableWriteBehind(final Path stagingDirectory, final long maxPendingBytes, final int numWorkers) throws N5IOException {
+
+		try {
+			setIoPolicy(new StagedWriteBehindIoPolicy(ioPolicy, stagingDirectory, maxPendingBytes, numWorkers));
+		} catch (IOException e) {
+			throw new N5IOException(e);
+		}
+	}
+
+	/**
+	 * Wait for all pending writes to complete.
+	 *
+	 * @throws N5IOException if a pending write failed
+	 */
+	public void flush() throws N5IOException {
+
+		try {
+			ioPolicy.flush();
+		} catch (IOException e) {
+			throw new N5IOException(e);
+		}
+	}
+
+	/**
+	 * Wait for all pending writes to complete and release resources held
+	 * by the {@link S3IoPolicy}, the prefetch buffer, and the threads that
+	 * create directory markers. The {@link S3Client} is not closed.
+	 *
+	 * @throws N5IOException if a pending write failed
+	 */
+	public void close() throws N5IOException {
+
+		disablePrefetch();
+		synchronized (this) {
+			if (readScheduler != null) {
+				readScheduler.shutdown();
+				readScheduler = null;
+			}
+			if (markerExecutor != null) {
+				markerExecutor.shutdown();
+				markerExecutor = null;
+			}
+		}
+		try {
+			ioPolicy.close();
+		} catch (IOException e) {
+			throw new N5IOException(e);
+		}
+	}
+
+	/**
+	 * Set the number of concurrent reads submitted with
+	 * {@link #submitRead(String, ReadPriority)}, including prefetches.
+	 * Reads queued before are completed with the previous parallelism.
+	 *
+	 * @param parallelism the maximum number of concurrent reads
+	 */
+	public synchronized void setReadParallelism(final int parallelism) {
+
+		final S3ReadScheduler previous = readScheduler;
+		readScheduler = new S3ReadScheduler(s3, bucketName, parallelism);
+		if (previous != null)
+			previous.drain();
+	}
+
+	private synchronized S3ReadScheduler getReadScheduler() {
+
+		if (readScheduler == null)
+			readScheduler = new S3ReadScheduler(s3, bucketName, DEFAULT_READ_PARALLELISM);
+		return readScheduler;
+	}
+
+	/**
+	 * Read the object at {@code normalPath} in the background. Reads are
+	 * started in {@link ReadPriority} order with bounded parallelism, see
+	 * {@link #setReadParallelism(int)}. Bypasses the {@link S3IoPolicy}.
+	 * <p>
+	 * Cancelling the returned future removes a queued read from the queue,
+	 * and aborts a running read so that its connection is released without
+	 * transferring the rest of the object.
+	 * <p>
+	 * Priorities order the reads submitted here and prefetches.
+	 * {@link #createReadData(String)} and {@link #readInto(String, long, long, ByteBuffer)}
+	 * are not queued, they read immediately, and a prefetch of the same
+	 * object that is still queued is cancelled rather than awaited.
+	 *
+	 * @param normalPath the path
+	 * @param priority the priority
+	 * @return the content of the object, failing with {@link N5NoSuchKeyException} if it does not exist
+	 */
+	public Future<byte[]> submitRead(final String normalPath, final ReadPriority priority) {
+
+		return getReadScheduler().submit(removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath)), priority, null);
+	}
+
+	/**
+	 * Enable {@link #prefetch(String)}. Prefetches are read with
+	 * {@link ReadPriority#PREFETCH}, see {@link #submitRead(String, ReadPriority)}.
+	 * Prefetched objects are served by {@link #createReadData(String)} and
+	 * {@link #readInto(String, long, long, ByteBuffer)} without another
+	 * request. Objects with pending writes in the {@link S3IoPolicy} are
+	 * neither prefetched nor served from prefetched data.
+	 *
+	 * @param maxBytes the maximum total size of prefetched objects that were not yet read
+	 * @param maxInFlight the maximum number of queued and running prefetches
+	 */
+	public synchronized void enablePrefetch(final long maxBytes, final int maxInFlight) {
+
+		disablePrefetch();
+		prefetchBuffer = new PrefetchBuffer(this::getReadScheduler, maxBytes, maxInFlight);
+	}
+
+	/**
+	 * Cancel all prefetches and stop prefetching.
+	 */
+	public synchronized void disablePrefetch() {
+
+		if (prefetchBuffer != null) {
+			prefetchBuffer.close();
+			prefetchBuffer = null;
+		}
+	}
+
+	/**
+	 * Start fetching the object at {@code normalPath} in the background, if
+	 * prefetching is enabled. Does nothing if too many prefetches are in
+	 * flight.
+	 *
+	 * @param normalPath the path
+	 */
+	public void prefetch(final String normalPath) {
+
+		final PrefetchBuffer buffer = prefetchBuffer;
+		if (buffer == null)
+			return;
+
+		final String key = removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		/* the stored object is older than the pending write */
+		if (!ioPolicy.isPending(key))
+			buffer.prefetch(key);
+	}
+
+	/**
+	 * @return the prefetched object at {@code normalizedKey}, or null if it
+	 *         was not prefetched or has a pending write
+	 */
+	private byte[] takePrefetched(final String normalizedKey) {
+
+		final PrefetchBuffer buffer = prefetchBuffer;
+		if (buffer == null)
+			return null;
+
+		if (ioPolicy.isPending(normalizedKey)) {
+			buffer.invalidate(normalizedKey);
+			return null;
+		}
+		return buffer.take(normalizedKey);
+	}
+
+	/**
+	 * Cancel the prefetch of {@code normalPath} if it is still in flight.
+	 *
+	 * @param normalPath the path
+	 */
+	public void cancelPrefetch(final String normalPath) {
+
+		final PrefetchBuffer buffer = prefetchBuffer;
+		if (buffer != null)
+			buffer.cancel(removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath)));
+	}
+
 	private S3IoPolicy setIoPolicy() {
 
 		String ioPolicy = System.getProperty("n5.ioPolicy");
@@ -96,6 +403,8 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 		switch (ioPolicy) {
 			case "unsafe":
 				return new S3IoPolicy.Unsafe(s3, bucketName);
+			case "conditional":
+				return new S3IoPolicy.ConditionalWrite(s3, bucketName);
 			case "permissive": // For S3, this is equivalent ot just strict
 			case "strict":
 			default:
@@ -103,6 +412,66 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 		}
     }
 
+	/**
+	 * Pre-establish pooled connections in the background.
+	 * <p>
+	 * Issues {@code connections} concurrent {@code HEAD} requests against the
+	 * bucket so that the client's connection pool holds that many connections
+	 * with completed TCP and TLS handshakes when the first reads arrive.
+	 * Pre-warming does not block reads, which use the pool as usual. The
+	 * number of connections that remain pooled is bounded by the client's
+	 * maximum connections (see {@link S3ClientProfile}).
+	 *
+	 * @param connections the number of connections to establish
+	 * @return a future that completes when all requests have finished, exceptionally with an
+	 *         {@link N5IOException} if any request failed
+	 */
+	public CompletableFuture<Void> prewarmConnections(final int connections) {
+
+		if (connections <= 0)
+			return CompletableFuture.completedFuture(null);
+
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-prewarm", connections);
+		/* release all requests at once, otherwise early finishers return their
+		 * connection to the pool and later requests reuse it */
+		final CountDownLatch startGate = new CountDownLatch(connections);
+		final CompletableFuture<?>[] requests = new CompletableFuture<?>[connections];
+		for (int i = 0; i < connections; i++) {
+			requests[i] = CompletableFuture.runAsync(() -> {
+				startGate.countDown();
+				try {
+					startGate.await(10, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new N5IOException("Interrupted while pre-warming connections", e);
+				}
+				s3.headBucket(HeadBucketRequest.builder().bucket(bucketName).build());
+			}, executor);
+		}
+
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		CompletableFuture.allOf(requests).whenComplete((r, e) -> {
+			executor.shutdown();
+			if (e == null)
+				done.complete(null);
+			else
+				done.completeExceptionally(new N5IOException("Failed to pre-warm connections to " + bucketName, e instanceof CompletionException ? e.getCause() : e));
+		});
+		return done;
+	}
+
+	/**
+	 * The pre-warming started when this access was opened, see
+	 * {@link #AmazonS3KeyValueAccess(S3Client, URI, boolean, int)}.
+	 *
+	 * @return a future that completes when pre-warming has finished, exceptionally if it failed,
+	 *         or a completed future if pre-warming was not requested
+	 */
+	public CompletableFuture<Void> getPrewarm() {
+
+		return prewarm;
+	}
+
 	private boolean bucketExists() {
 
 		return bucketCheckedAndExists = bucketCheckedAndExists != null
@@ -338,13 +707,25 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 	public boolean isFile(final String normalPath) {
 
 		final String key = AmazonS3Utils.getS3Key(normalPath);
-		return !key.endsWith("/") && keyExists(removeLeadingSlash(key));
+		if (key.endsWith("/"))
+			return false;
+
+		final String normalizedKey = removeLeadingSlash(key);
+		return ioPolicy.isPending(normalizedKey) || keyExists(normalizedKey);
 	}
 
 	@Override
 	public long size(String normalPath) throws N5NoSuchKeyException {
 
 		final String key = removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		/* answer from the pending write, like reads do */
+		if (ioPolicy.isPending(key)) {
+			try (VolatileReadData readData = ioPolicy.read(key)) {
+				return readData.requireLength();
+			} catch (IOException e) {
+				throw new N5IOException(e);
+			}
+		}
 		return headObjectRequest(s3, bucketName, key, null).contentLength();
 	}
 
@@ -352,6 +733,10 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 	public VolatileReadData createReadData(String normalPath) throws N5Exception.N5IOException {
 
 		final String key = AmazonS3Utils.getS3Key(normalPath);
+		final byte[] prefetched = takePrefetched(removeLeadingSlash(key));
+		if (prefetched != null)
+			return VolatileReadData.from(new BytesLazyRead(prefetched));
+
         try {
             return ioPolicy.read(key);
         } catch (IOException e) {
@@ -359,11 +744,46 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
         }
 	}
 
+	/**
+	 * Read {@code length} bytes of the object at {@code normalPath} starting
+	 * at {@code offset}, or all bytes from {@code offset} if {@code length}
+	 * is not positive, into {@code destination} at its position, and advance
+	 * the position of {@code destination}.
+	 * <p>
+	 * The response is copied from the connection into {@code destination}
+	 * without allocating an array for the data, so that a reused heap or
+	 * direct buffer allows reading fixed-size blocks without allocation.
+	 *
+	 * @param normalPath the path
+	 * @param offset the offset in the object
+	 * @param length the number of bytes
+	 * @param destination the buffer to read into
+	 * @return the number of bytes read
+	 * @throws N5NoSuchKeyException if the object does not exist
+	 * @throws N5IOException if the read failed or the bytes do not fit into the remaining space of {@code destination}
+	 */
+	public int readInto(final String normalPath, final long offset, final long length, final ByteBuffer destination) throws N5IOException {
+
+		final String key = AmazonS3Utils.getS3Key(normalPath);
+		final byte[] prefetched = takePrefetched(removeLeadingSlash(key));
+		if (prefetched != null)
+			return AmazonS3Utils.copyInto(prefetched, offset, length, destination);
+
+		try {
+			return ioPolicy.readInto(key, offset, length, destination);
+		} catch (IOException e) {
+			throw new N5IOException(e);
+		}
+	}
+
 	@Override
 	public void write(final String normalPath, final ReadData data) throws N5IOException {
 
 		final String key = AmazonS3Utils.getS3Key(normalPath);
 		final String normalizedKey = removeLeadingSlash(key);
+		final PrefetchBuffer buffer = prefetchBuffer;
+		if (buffer != null)
+			buffer.invalidate(normalizedKey);
 
         try {
             ioPolicy.write(normalizedKey, data);
@@ -372,6 +792,264 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
         }
 	}
 
+	/**
+	 * Atomically read, modify and write the object at {@code normalPath}
+	 * using conditional writes, see {@link S3IoPolicy.ConditionalWrite#update(String, UnaryOperator)}.
+	 * Requires that the current {@link S3IoPolicy} is a {@link S3IoPolicy.ConditionalWrite}.
+	 *
+	 * @param normalPath the path
+	 * @param modify maps the current data, or {@code null} if the object does not exist, to the new data
+	 * @throws N5Exception.N5ConcurrentModificationException if the retries were exhausted
+	 */
+	public void update(final String normalPath, final UnaryOperator<ReadData> modify) throws N5Exception.N5ConcurrentModificationException {
+
+		if (!(ioPolicy instanceof S3IoPolicy.ConditionalWrite))
+			throw new N5Exception("Conditional updates require the " + S3IoPolicy.ConditionalWrite.class.getSimpleName() + " io policy");
+
+		final String key = removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		final PrefetchBuffer buffer = prefetchBuffer;
+		if (buffer != null)
+			buffer.invalidate(key);
+
+		((S3IoPolicy.ConditionalWrite)ioPolicy).update(key, modify);
+	}
+
+	/**
+	 * Start a server-side rewrite of the object at {@code normalPath}, see
+	 * {@link S3ObjectRewrite}. Bypasses the {@link S3IoPolicy}.
+	 *
+	 * @param normalPath the path of an existing object
+	 * @param parallelism the number of parts transferred concurrently
+	 * @return the rewrite, to be described and committed by the caller
+	 */
+	public S3ObjectRewrite rewrite(final String normalPath, final int parallelism) {
+
+		final String key = removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		return new S3ObjectRewrite(s3, bucketName, key, parallelism);
+	}
+
+	/**
+	 * Split the keys under {@code normalPath} into at most {@code numSplits}
+	 * key ranges of similar size that distributed workers can list
+	 * independently, see {@link S3KeyRange#split(S3Client, String, String, int, int, int)}.
+	 *
+	 * @param normalPath the directory
+	 * @param numSplits the requested number of ranges
+	 * @return the ranges in key order
+	 * @throws N5IOException if a list request failed
+	 */
+	public List<S3KeyRange> splitKeyRange(final String normalPath, final int numSplits) throws N5IOException {
+
+		return S3KeyRange.split(s3, bucketName, directoryPrefix(normalPath), numSplits, 4, 16);
+	}
+
+	/**
+	 * Copy everything under {@code normalPath} to {@code targetPath} within
+	 * this bucket, server-side. See {@link S3PrefixCopy} for copies between
+	 * buckets. Bypasses the {@link S3IoPolicy}.
+	 *
+	 * @param normalPath the source directory
+	 * @param targetPath the target directory, must not be inside of the source or vice versa
+	 * @param parallelism the number of concurrent copy requests
+	 * @param checkpoint a file to store progress for resuming an interrupted copy, may be null
+	 * @return the number of objects copied
+	 * @throws N5IOException if a copy failed
+	 */
+	public long copy(final String normalPath, final String targetPath, final int parallelism, final Path checkpoint) throws N5IOException {
+
+		final String sourcePrefix = directoryPrefix(normalPath);
+		final String targetPrefix = directoryPrefix(targetPath);
+		if (sourcePrefix.startsWith(targetPrefix) || targetPrefix.startsWith(sourcePrefix))
+			throw new N5IOException("Cannot copy " + normalPath + " to " + targetPath + ", they overlap");
+
+		return new S3PrefixCopy(s3, bucketName, sourcePrefix, bucketName, targetPrefix, parallelism, checkpoint).run();
+	}
+
+	/**
+	 * Move everything under {@code normalPath} to {@code targetPath} within
+	 * this bucket: copies server-side in parallel, then deletes the copied
+	 * source objects with parallel batch deletes.
+	 * <p>
+	 * Only source objects that have an identical copy in the target are
+	 * deleted, i.e. a copy with the same ETag, or one that is newer than the
+	 * source object. Source objects that were created or overwritten after
+	 * they were copied are kept.
+	 * <p>
+	 * If a checkpoint file is given, an interrupted move can be completed by
+	 * calling this method again with the same arguments. The checkpoint file
+	 * and a sibling file with suffix {@code .copied} are removed when the move
+	 * completes.
+	 *
+	 * @param normalPath the source directory
+	 * @param targetPath the target directory, must not be inside of the source or vice versa
+	 * @param parallelism the number of concurrent requests
+	 * @param checkpoint a file to store progress for resuming an interrupted move, may be null
+	 * @throws N5IOException if the move failed
+	 */
+	public void move(final String normalPath, final String targetPath, final int parallelism, final Path checkpoint) throws N5IOException {
+
+		final String sourcePrefix = directoryPrefix(normalPath);
+		final String targetPrefix = directoryPrefix(targetPath);
+		if (sourcePrefix.startsWith(targetPrefix) || targetPrefix.startsWith(sourcePrefix))
+			throw new N5IOException("Cannot move " + normalPath + " to " + targetPath + ", they overlap");
+
+		final Path copied = checkpoint == null ? null : checkpoint.resolveSibling(checkpoint.getFileName() + ".copied");
+		try {
+			if (copied == null || !Files.exists(copied)) {
+				new S3PrefixCopy(s3, bucketName, sourcePrefix, bucketName, targetPrefix, parallelism, checkpoint).run();
+				if (copied != null)
+					Files.createFile(copied);
+			}
+
+			deleteCopied(sourcePrefix, targetPrefix, parallelism);
+
+			if (copied != null)
+				Files.deleteIfExists(copied);
+		} catch (IOException e) {
+			throw new N5IOException("Failed to move " + normalPath + " to " + targetPath, e);
+		} finally {
+			final PrefetchBuffer buffer = prefetchBuffer;
+			if (buffer != null) {
+				buffer.invalidate(removeLeadingSlash(sourcePrefix));
+				buffer.invalidate(removeLeadingSlash(targetPrefix));
+			}
+		}
+	}
+
+	/**
+	 * Delete all objects under {@code sourcePrefix} that have an identical
+	 * copy under {@code targetPrefix} with {@code DeleteObjects} requests of
+	 * up to 1000 keys each, running {@code parallelism} requests
+	 * concurrently. Source and target are listed side by side in key order.
+	 *
+	 * @throws IOException if a request failed or objects could not be deleted, listing their keys
+	 */
+	private void deleteCopied(final String sourcePrefix, final String targetPrefix, final int parallelism) throws IOException {
+
+		knownMarkers.removeIf(marker -> marker.startsWith(sourcePrefix));
+
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-delete", parallelism);
+		final List<Future<?>> deletes = new ArrayList<>();
+		try {
+			final Iterator<S3Object> targets = s3.listObjectsV2Paginator(ListObjectsV2Request.builder()
+					.bucket(bucketName)
+					.prefix(targetPrefix)
+					.build()).contents().iterator();
+			S3Object target = targets.hasNext() ? targets.next() : null;
+
+			List<ObjectIdentifier> objects = new ArrayList<>();
+			for (final S3Object source : s3.listObjectsV2Paginator(ListObjectsV2Request.builder()
+					.bucket(bucketName)
+					.prefix(sourcePrefix)
+					.build()).contents()) {
+
+				final String suffix = source.key().substring(sourcePrefix.length());
+				while (target != null && target.key().substring(targetPrefix.length()).compareTo(suffix) < 0)
+					target = targets.hasNext() ? targets.next() : null;
+
+				if (target == null || !target.key().substring(targetPrefix.length()).equals(suffix) || !isCopy(source, target))
+					continue;
+
+				objects.add(ObjectIdentifier.builder().key(source.key()).build());
+				if (objects.size() == 1000) {
+					deletes.add(submitDelete(executor, objects));
+					objects = new ArrayList<>();
+				}
+			}
+			if (!objects.isEmpty())
+				deletes.add(submitDelete(executor, objects));
+
+			for (final Future<?> delete : deletes)
+				delete.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while deleting " + sourcePrefix, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to delete " + sourcePrefix, e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Whether {@code target} is a copy of the current {@code source}: it has
+	 * the same content, or it was written after the source object. A source
+	 * overwritten in the same second as its copy is conservatively kept.
+	 */
+	private static boolean isCopy(final S3Object source, final S3Object target) {
+
+		if (source.eTag() != null && source.eTag().equals(target.eTag()))
+			return true;
+
+		return source.size().equals(target.size())
+				&& source.lastModified() != null && target.lastModified() != null
+				&& source.lastModified().isBefore(target.lastModified());
+	}
+
+	private Future<?> submitDelete(final ExecutorService executor, final List<ObjectIdentifier> objects) {
+
+		return executor.submit(() -> {
+			final DeleteObjectsResponse response = rethrowS3Exceptions(() -> s3.deleteObjects(DeleteObjectsRequest.builder()
+					.bucket(bucketName)
+					.delete(Delete.builder().objects(objects).quiet(true).build())
+					.build()));
+			/* quiet mode reports only the keys that could not be deleted */
+			if (response.hasErrors() && !response.errors().isEmpty()) {
+				final StringBuilder message = new StringBuilder("Failed to delete " + response.errors().size() + " objects:");
+				for (final S3Error error : response.errors())
+					message.append("\n  ").append(error.key()).append(": ").append(error.code()).append(" ").append(error.message());
+				throw new IOException(message.toString());
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * The key prefix of all objects under {@code normalPath}.
+	 */
+	String directoryPrefix(final String normalPath) {
+
+		return removeLeadingSlash(addTrailingSlash(AmazonS3Utils.getS3Key(normalPath)));
+	}
+
+	/**
+	 * Iterate the keys under {@code normalPath} relative to it, listing
+	 * further pages as the iterator is consumed.
+	 */
+	Iterator<String> iterateKeys(final String normalPath) {
+
+		final String prefix = directoryPrefix(normalPath);
+		final ListObjectsV2Request request = ListObjectsV2Request.builder()
+				.bucket(bucketName)
+				.prefix(prefix)
+				.build();
+		final Iterator<S3Object> objects = s3.listObjectsV2Paginator(request).contents().iterator();
+		return new Iterator<String>() {
+
+			@Override
+			public boolean hasNext() {
+
+				return objects.hasNext();
+			}
+
+			@Override
+			public String next() {
+
+				return objects.next().key().substring(prefix.length());
+			}
+		};
+	}
+
+	String getBucketName() {
+
+		return bucketName;
+	}
+
+	S3Client getS3() {
+
+		return s3;
+	}
+
 	@Override
 	public String[] listDirectories(final String normalPath) {
 
@@ -419,6 +1097,91 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 		return list(normalPath, false);
 	}
 
+	/**
+	 * List the keys of all objects under {@code normalPath}, at any depth,
+	 * relative to {@code normalPath}. Directory markers are included with a
+	 * trailing "/".
+	 * <p>
+	 * Each prefix is first probed with one delimiter-less listing page. If
+	 * that holds all keys under the prefix, the subtree is done in a single
+	 * request. Otherwise, the prefix is listed with delimiter "/" and the
+	 * discovered common prefixes are processed concurrently with at most
+	 * {@code parallelism} requests in flight.
+	 *
+	 * @param normalPath the directory to list
+	 * @param parallelism the maximum number of concurrent list requests
+	 * @return the relative keys, in no particular order
+	 * @throws N5IOException if a list request failed
+	 */
+	public String[] listRecursive(final String normalPath, final int parallelism) throws N5IOException {
+
+		final String rootPrefix = directoryPrefix(normalPath);
+		final ConcurrentLinkedQueue<String> keys = new ConcurrentLinkedQueue<>();
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-list", parallelism);
+		final AtomicInteger remaining = new AtomicInteger(1);
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		try {
+			executor.execute(new Runnable() {
+
+				private void submit(final String prefix) {
+
+					remaining.incrementAndGet();
+					executor.execute(() -> listPrefix(prefix));
+				}
+
+				private void listPrefix(final String prefix) {
+
+					try {
+						final ListObjectsV2Response probe = s3.listObjectsV2(ListObjectsV2Request.builder()
+								.bucket(bucketName)
+								.prefix(prefix)
+								.build());
+
+						if (!probe.isTruncated()) {
+							probe.contents().forEach(object -> keys.add(object.key()));
+						} else {
+							final ListObjectsV2Request request = ListObjectsV2Request.builder()
+									.bucket(bucketName)
+									.prefix(prefix)
+									.delimiter("/")
+									.build();
+							for (final ListObjectsV2Response page : s3.listObjectsV2Paginator(request)) {
+								page.contents().forEach(object -> keys.add(object.key()));
+								page.commonPrefixes().forEach(p -> submit(p.prefix()));
+							}
+						}
+						if (remaining.decrementAndGet() == 0)
+							done.complete(null);
+					} catch (final Throwable e) {
+						done.completeExceptionally(e);
+					}
+				}
+
+				@Override
+				public void run() {
+
+					listPrefix(rootPrefix);
+				}
+			});
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new N5IOException("Interrupted while listing " + normalPath, e);
+		} catch (ExecutionException e) {
+			throw new N5IOException("Failed to list " + normalPath, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final List<String> relativeKeys = new ArrayList<>(keys.size());
+		for (final String key : keys) {
+			final String relativeKey = key.substring(rootPrefix.length());
+			if (!relativeKey.isEmpty())
+				relativeKeys.add(relativeKey);
+		}
+		return relativeKeys.toArray(new String[0]);
+	}
+
 	@Override
 	public void createDirectories(final String normalPath) {
 
@@ -426,6 +1189,10 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 			createBucket();
 		}
 
+		if (directoryMarkers == DirectoryMarkers.NONE)
+			return;
+
+		final List<String> markers = new ArrayList<>();
 		String path = "";
 		for (final String component : components(removeLeadingSlash(normalPath))) {
 			final String composed = addTrailingSlash(compose(path, component));
@@ -433,16 +1200,55 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 				continue;
 
 			path = composed;
-			final PutObjectRequest putOb = PutObjectRequest.builder()
-					.bucket(bucketName)
-					.key(path)
-					.contentLength((long)0)
-					.build();
+			if (directoryMarkers == DirectoryMarkers.ALWAYS || !knownMarkers.contains(path))
+				markers.add(path);
+		}
 
-			s3.putObject(putOb, RequestBody.fromBytes(new byte[0]));
+		if (markers.size() == 1) {
+			createMarker(markers.get(0));
+			return;
+		}
+
+		final List<Future<?>> futures = new ArrayList<>();
+		final ExecutorService executor = getMarkerExecutor();
+		for (final String marker : markers)
+			futures.add(executor.submit(() -> createMarker(marker)));
+
+		try {
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new N5IOException("Interrupted while creating " + normalPath, e);
+		} catch (final ExecutionException e) {
+			throw new N5IOException("Failed to create " + normalPath, e.getCause());
 		}
 	}
 
+	private void createMarker(final String marker) {
+
+		if (directoryMarkers == DirectoryMarkers.IF_MISSING && keyExists(marker)) {
+			knownMarkers.add(marker);
+			return;
+		}
+
+		final PutObjectRequest putOb = PutObjectRequest.builder()
+				.bucket(bucketName)
+				.key(marker)
+				.contentLength((long)0)
+				.build();
+
+		s3.putObject(putOb, RequestBody.fromBytes(new byte[0]));
+		knownMarkers.add(marker);
+	}
+
+	private synchronized ExecutorService getMarkerExecutor() {
+
+		if (markerExecutor == null)
+			markerExecutor = S3Executors.newBoundedExecutor("n5-s3-markers", 8);
+		return markerExecutor;
+	}
+
 	@Override
 	public void delete(final String normalPath) {
 
@@ -452,10 +1258,17 @@ public class AmazonS3KeyValueAccess implements KeyValueAccess {
 		// remove bucket when deleting "/"
 		if (AmazonS3Utils.getS3Key(normalPath).equals(normalize("/"))) {
 			deleteBucket(); // also deletes all contents
+			knownMarkers.clear();
 			return;
 		}
 
 		final String key = removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		final String prefix = addTrailingSlash(key);
+		knownMarkers.removeIf(marker -> marker.startsWith(prefix));
+		final PrefetchBuffer buffer = prefetchBuffer;
+		if (buffer != null)
+			buffer.invalidate(key);
+
         try {
             ioPolicy.delete(key);
         } catch (IOException e) {
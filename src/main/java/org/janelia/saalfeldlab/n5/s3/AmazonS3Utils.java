@@ -2,6 +2,9 @@ package org.janelia.saalfeldlab.n5.s3;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
@@ -140,6 +143,48 @@ public class AmazonS3Utils {
 		return keyBuilder.toString();
 	}
 
+	/**
+	 * The hex encoded MD5 digest of {@code data}, which equals the ETag of a
+	 * single part object without SSE-KMS or SSE-C encryption.
+	 *
+	 * @param data the data
+	 * @return the lower case hex digest
+	 */
+	public static String md5Hex(final byte[] data) {
+
+		final MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new N5Exception(e);
+		}
+
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b : md5.digest(data))
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/**
+	 * Copy {@code length} bytes of {@code data} starting at {@code offset}, or
+	 * all bytes from {@code offset} if {@code length} is not positive, into
+	 * {@code destination} at its position.
+	 *
+	 * @return the number of bytes copied
+	 * @throws N5Exception.N5IOException if the bytes do not fit into the remaining space of {@code destination}
+	 */
+	static int copyInto(final byte[] data, final long offset, final long length, final ByteBuffer destination) throws N5Exception.N5IOException {
+
+		final long end = length > 0 ? Math.min(data.length, offset + length) : data.length;
+		final int n = (int)Math.max(0, end - offset);
+		if (n > destination.remaining())
+			throw new N5Exception.N5IOException("Read of " + n + " bytes does not fit into " + destination.remaining() + " remaining bytes");
+
+		if (n > 0)
+			destination.put(data, (int)offset, n);
+		return n;
+	}
+
 	public static boolean areAnonymous(final AwsCredentialsProvider credsProvider) {
 
 		if (credsProvider instanceof AnonymousCredentialsProvider)
@@ -195,6 +240,29 @@ public class AmazonS3Utils {
 		return createS3(uri, null);
 	}
 
+	/**
+	 * Create an {@link S3Client} for the given uri with http client settings
+	 * from a {@link S3ClientProfile} sized for the requested parallelism.
+	 * <p>
+	 * The profile is applied before {@code builderConfig}, so settings made in
+	 * {@code builderConfig} take precedence.
+	 *
+	 * @param uri the uri
+	 * @param profile the http client tuning profile
+	 * @param parallelism the number of threads expected to issue requests concurrently
+	 * @param builderConfig additional builder configuration, may be null
+	 * @return the s3 client
+	 */
+	public static S3Client createS3(
+			final String uri,
+			final S3ClientProfile profile,
+			final int parallelism,
+			@Nullable final Consumer<S3ClientBuilder> builderConfig) {
+
+		final Consumer<S3ClientBuilder> profileConfig = profile.configure(parallelism);
+		return createS3(uri, builderConfig == null ? profileConfig : profileConfig.andThen(builderConfig));
+	}
+
     public static S3Client createS3(final String uri, @Nullable final Consumer<S3ClientBuilder> builderConfig) {
 		S3ClientBuilder builder = S3Client.builder();
 
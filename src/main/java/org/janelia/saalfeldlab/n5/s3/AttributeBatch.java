@@ -0,0 +1,186 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Accumulates the attributes written to groups in memory so that a series of
+ * attribute changes results in one write per group. Pending attributes are
+ * written on {@link #flush()}, or once no change to a group happened for the
+ * debounce interval.
+ * <p>
+ * Pending attributes remain readable until they are written, and attributes
+ * of failed writes remain pending. Writes are serialized, so that the last
+ * change to a group is always written last.
+ */
+final class AttributeBatch {
+
+	/**
+	 * Writes the attributes of one group.
+	 */
+	interface Sink {
+
+		void write(String normalPath, JsonElement attributes) throws N5Exception;
+	}
+
+	private final Sink sink;
+	private final long debounceMillis;
+	private final ScheduledExecutorService scheduler;
+
+	private final Map<String, JsonElement> pending = new LinkedHashMap<>();
+	private final Map<String, ScheduledFuture<?>> scheduled = new HashMap<>();
+	private final Object writeLock = new Object();
+
+	/* first failure of a debounced write, reported by the next flush */
+	private N5Exception failure = null;
+
+	/**
+	 * @param sink writes the attributes of a group
+	 * @param debounceMillis the interval without changes after which a group is written, 0 to write only on {@link #flush()}
+	 */
+	AttributeBatch(final Sink sink, final long debounceMillis) {
+
+		this.sink = sink;
+		this.debounceMillis = debounceMillis;
+		this.scheduler = debounceMillis > 0 ? S3Executors.newScheduledExecutor("n5-s3-attributes") : null;
+	}
+
+	synchronized void put(final String normalPath, final JsonElement attributes) {
+
+		pending.put(normalPath, attributes.deepCopy());
+		if (scheduler != null) {
+			final ScheduledFuture<?> previous = scheduled.put(
+					normalPath,
+					scheduler.schedule(() -> flushDebounced(normalPath), debounceMillis, TimeUnit.MILLISECONDS));
+			if (previous != null)
+				previous.cancel(false);
+		}
+	}
+
+	/**
+	 * @return a copy of the pending attributes of a group, or null if there are none
+	 */
+	synchronized JsonElement get(final String normalPath) {
+
+		final JsonElement attributes = pending.get(normalPath);
+		return attributes == null ? null : attributes.deepCopy();
+	}
+
+	/**
+	 * Drop the pending attributes of a group and all of its descendants.
+	 */
+	synchronized void discard(final String normalPath) {
+
+		final String prefix = normalPath.endsWith("/") ? normalPath : normalPath + "/";
+		final List<String> paths = new ArrayList<>(pending.keySet());
+		for (final String path : paths) {
+			if (path.equals(normalPath) || path.startsWith(prefix) || prefix.equals("/")) {
+				pending.remove(path);
+				final ScheduledFuture<?> future = scheduled.remove(path);
+				if (future != null)
+					future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Drop the pending attributes of one group and write {@code attributes}
+	 * immediately, after a write of that group that is in progress.
+	 *
+	 * @param normalPath the group
+	 * @param attributes the attributes, may be null
+	 * @throws N5Exception if the write failed
+	 */
+	void writeNow(final String normalPath, final JsonElement attributes) throws N5Exception {
+
+		synchronized (writeLock) {
+			synchronized (this) {
+				pending.remove(normalPath);
+				final ScheduledFuture<?> future = scheduled.remove(normalPath);
+				if (future != null)
+					future.cancel(false);
+			}
+			sink.write(normalPath, attributes);
+		}
+	}
+
+	/**
+	 * Write all pending attributes.
+	 *
+	 * @throws N5Exception if a write failed, including debounced writes since the last flush
+	 */
+	void flush() throws N5Exception {
+
+		final List<String> paths;
+		synchronized (this) {
+			paths = new ArrayList<>(pending.keySet());
+		}
+		for (final String path : paths)
+			write(path);
+
+		final N5Exception e;
+		synchronized (this) {
+			e = failure;
+			failure = null;
+		}
+		if (e != null)
+			throw e;
+	}
+
+	/**
+	 * Write all pending attributes and stop debouncing.
+	 */
+	void close() throws N5Exception {
+
+		try {
+			flush();
+		} finally {
+			if (scheduler != null)
+				scheduler.shutdownNow();
+		}
+	}
+
+	private void flushDebounced(final String normalPath) {
+
+		try {
+			write(normalPath);
+		} catch (final N5Exception e) {
+			synchronized (this) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+	}
+
+	private void write(final String normalPath) throws N5Exception {
+
+		synchronized (writeLock) {
+			final JsonElement attributes;
+			synchronized (this) {
+				attributes = pending.get(normalPath);
+				final ScheduledFuture<?> future = scheduled.remove(normalPath);
+				if (future != null)
+					future.cancel(false);
+			}
+			if (attributes == null)
+				return;
+
+			sink.write(normalPath, attributes);
+
+			/* keep attributes that were changed during the write, and failed writes */
+			synchronized (this) {
+				pending.remove(normalPath, attributes);
+			}
+		}
+	}
+}
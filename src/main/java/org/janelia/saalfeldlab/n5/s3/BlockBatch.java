@@ -0,0 +1,113 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.N5Exception;
+
+/**
+ * Reads blocks concurrently and returns them in the order in which they
+ * arrive.
+ * <p>
+ * At most {@code parallelism} blocks are read at a time, and at most
+ * {@code 2 * parallelism} blocks are read or wait to be consumed. Further
+ * grid positions are submitted as results are consumed. The first failed read cancels the
+ * remaining reads and is thrown by {@link #next()}.
+ *
+ * @param <T> the type of the block data
+ */
+final class BlockBatch<T> implements Iterator<BlockBatch.Result<T>>, AutoCloseable {
+
+	/**
+	 * A grid position and its block, or null if the block does not exist.
+	 */
+	static final class Result<T> {
+
+		final long[] gridPosition;
+		final DataBlock<T> block;
+
+		Result(final long[] gridPosition, final DataBlock<T> block) {
+
+			this.gridPosition = gridPosition;
+			this.block = block;
+		}
+	}
+
+	private final Iterator<long[]> gridPositions;
+	private final Function<long[], DataBlock<T>> readBlock;
+	private final ExecutorService executor;
+	private final CompletionService<Result<T>> completion;
+	private final int maxOutstanding;
+	private int outstanding = 0;
+
+	/**
+	 * @param gridPositions the blocks to read
+	 * @param readBlock reads a block, returns null if it does not exist
+	 * @param parallelism the maximum number of concurrent reads
+	 */
+	BlockBatch(final Iterator<long[]> gridPositions, final Function<long[], DataBlock<T>> readBlock, final int parallelism) {
+
+		this.gridPositions = gridPositions;
+		this.readBlock = readBlock;
+		this.executor = S3Executors.newBoundedExecutor("n5-s3-blocks", parallelism);
+		this.completion = new ExecutorCompletionService<>(executor);
+		this.maxOutstanding = 2 * Math.max(1, parallelism);
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		submit();
+		return outstanding > 0;
+	}
+
+	@Override
+	public Result<T> next() {
+
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		try {
+			final Result<T> result = completion.take().get();
+			outstanding--;
+			return result;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new N5Exception.N5IOException("Interrupted while reading blocks", e);
+		} catch (final ExecutionException e) {
+			close();
+			final Throwable cause = e.getCause();
+			if (cause instanceof N5Exception)
+				throw (N5Exception)cause;
+			throw new N5Exception.N5IOException("Failed to read block", cause);
+		}
+	}
+
+	/**
+	 * Cancel all pending reads.
+	 */
+	@Override
+	public void close() {
+
+		outstanding = 0;
+		executor.shutdownNow();
+	}
+
+	private void submit() {
+
+		while (outstanding < maxOutstanding && gridPositions.hasNext() && !executor.isShutdown()) {
+			final long[] gridPosition = gridPositions.next().clone();
+			completion.submit(() -> new Result<>(gridPosition, readBlock.apply(gridPosition)));
+			outstanding++;
+		}
+		if (outstanding == 0 && !executor.isShutdown())
+			executor.shutdown();
+	}
+}
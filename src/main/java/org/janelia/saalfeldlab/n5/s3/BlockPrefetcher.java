@@ -0,0 +1,161 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Predicts the next blocks of a dataset from the grid positions read so far.
+ * <p>
+ * Two patterns are recognized per dataset: a linear sweep, where two
+ * consecutive reads are separated by the same non-zero step, predicts the
+ * next {@code depth} positions along that step; neighbourhood access, where
+ * consecutive reads are adjacent, predicts the face neighbours of the
+ * current position. Predictions that are no longer predicted after the next
+ * read and have not been read are cancelled.
+ */
+final class BlockPrefetcher {
+
+	private static final class Pattern {
+
+		long[] last = null;
+		long[] step = null;
+		Set<String> predicted = new LinkedHashSet<>();
+	}
+
+	private final int depth;
+	private final Consumer<String> prefetch;
+	private final Consumer<String> cancel;
+
+	private final ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<>();
+
+	/**
+	 * @param depth the number of positions predicted along a sweep
+	 * @param prefetch starts fetching a block key
+	 * @param cancel cancels fetching a block key
+	 */
+	BlockPrefetcher(final int depth, final Consumer<String> prefetch, final Consumer<String> cancel) {
+
+		this.depth = Math.max(1, depth);
+		this.prefetch = prefetch;
+		this.cancel = cancel;
+	}
+
+	/**
+	 * Record a read of a block and prefetch the predicted next blocks.
+	 *
+	 * @param datasetKey the path of the dataset, block keys are {@code datasetKey/x/y/z/...}
+	 * @param gridPosition the position of the block that is read
+	 * @param gridSize the number of blocks per dimension, predictions outside are dropped
+	 * @param presence if not null, predictions of absent blocks are dropped
+	 */
+	void observe(
+			final String datasetKey,
+			final long[] gridPosition,
+			final long[] gridSize,
+			@Nullable final BlockPresenceIndex presence) {
+
+		final Pattern pattern = patterns.computeIfAbsent(datasetKey, k -> new Pattern());
+		synchronized (pattern) {
+			pattern.predicted.remove(blockKey(datasetKey, gridPosition));
+
+			final Set<String> predicted = new LinkedHashSet<>();
+			for (final long[] position : predict(pattern, gridPosition))
+				if (inGrid(position, gridSize) && (presence == null || presence.contains(position)))
+					predicted.add(blockKey(datasetKey, position));
+
+			for (final String key : pattern.predicted)
+				if (!predicted.contains(key))
+					cancel.accept(key);
+
+			for (final String key : predicted)
+				if (!pattern.predicted.contains(key))
+					prefetch.accept(key);
+
+			pattern.predicted = predicted;
+		}
+	}
+
+	/**
+	 * Forget the pattern of a dataset and cancel its predictions.
+	 */
+	void reset(final String datasetKey) {
+
+		final Pattern pattern = patterns.remove(datasetKey);
+		if (pattern != null) {
+			synchronized (pattern) {
+				pattern.predicted.forEach(cancel);
+				pattern.predicted.clear();
+			}
+		}
+	}
+
+	/**
+	 * Cancel all predictions.
+	 */
+	void reset() {
+
+		new ArrayList<>(patterns.keySet()).forEach(this::reset);
+	}
+
+	private List<long[]> predict(final Pattern pattern, final long[] gridPosition) {
+
+		final List<long[]> positions = new ArrayList<>();
+		if (pattern.last != null && pattern.last.length == gridPosition.length) {
+			final long[] step = new long[gridPosition.length];
+			boolean zero = true;
+			boolean adjacent = true;
+			for (int d = 0; d < step.length; d++) {
+				step[d] = gridPosition[d] - pattern.last[d];
+				zero &= step[d] == 0;
+				adjacent &= Math.abs(step[d]) <= 1;
+			}
+
+			if (!zero && Arrays.equals(step, pattern.step)) {
+				for (int k = 1; k <= depth; k++) {
+					final long[] position = new long[step.length];
+					for (int d = 0; d < step.length; d++)
+						position[d] = gridPosition[d] + k * step[d];
+					positions.add(position);
+				}
+			} else if (!zero && adjacent) {
+				for (int d = 0; d < step.length; d++) {
+					for (int s = -1; s <= 1; s += 2) {
+						final long[] position = gridPosition.clone();
+						position[d] += s;
+						positions.add(position);
+					}
+				}
+			}
+			if (!zero)
+				pattern.step = step;
+		}
+		pattern.last = gridPosition.clone();
+		return positions;
+	}
+
+	private static boolean inGrid(final long[] position, final long[] gridSize) {
+
+		for (int d = 0; d < position.length; d++)
+			if (position[d] < 0 || position[d] >= gridSize[d])
+				return false;
+		return true;
+	}
+
+	static String blockKey(final String datasetKey, final long[] gridPosition) {
+
+		final StringBuilder key = new StringBuilder(datasetKey);
+		for (final long p : gridPosition) {
+			if (key.length() > 0 && key.charAt(key.length() - 1) != '/')
+				key.append('/');
+			key.append(p);
+		}
+		return key.toString();
+	}
+}
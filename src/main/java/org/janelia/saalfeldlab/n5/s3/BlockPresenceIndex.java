@@ -0,0 +1,162 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bitmap over the block grid of a dataset that records which blocks exist.
+ * <p>
+ * Built from the relative keys of a listing of the dataset (see
+ * {@link AmazonS3KeyValueAccess#listRecursive(String, int)}), where each
+ * block is stored at {@code x/y/z/...} as in the N5 format. Readers of sparse
+ * datasets can skip requests for blocks that are not in the index. The index
+ * can be updated for blocks written or deleted by this process, and rebuilt
+ * from a new listing to pick up changes by others.
+ * <p>
+ * Uses one bit per grid position.
+ */
+public class BlockPresenceIndex {
+
+	private final long[] gridSize;
+	private final AtomicLongArray words;
+
+	/**
+	 * Create an empty index.
+	 *
+	 * @param gridSize the number of blocks per dimension
+	 */
+	public BlockPresenceIndex(final long[] gridSize) {
+
+		this.gridSize = gridSize.clone();
+		long numBlocks = 1;
+		for (final long s : gridSize)
+			numBlocks = Math.multiplyExact(numBlocks, s);
+
+		final long numWords = (numBlocks + 63) / 64;
+		if (numWords > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grid of size " + Arrays.toString(gridSize) + " is too large for a block presence index");
+
+		words = new AtomicLongArray((int)numWords);
+	}
+
+	/**
+	 * Create an index from the keys of a dataset listing. Keys that are not
+	 * grid positions (e.g. {@code attributes.json}, directory markers) are
+	 * ignored.
+	 *
+	 * @param gridSize the number of blocks per dimension
+	 * @param relativeKeys keys relative to the dataset
+	 * @return the index
+	 */
+	public static BlockPresenceIndex fromKeys(final long[] gridSize, final String[] relativeKeys) {
+
+		final BlockPresenceIndex index = new BlockPresenceIndex(gridSize);
+		final long[] gridPosition = new long[gridSize.length];
+		for (final String key : relativeKeys)
+			if (parseGridPosition(key, gridPosition))
+				index.add(gridPosition);
+
+		return index;
+	}
+
+	/**
+	 * The grid size of a dataset.
+	 *
+	 * @param dimensions the dataset dimensions
+	 * @param blockSize the block size
+	 * @return the number of blocks per dimension
+	 */
+	public static long[] gridSize(final long[] dimensions, final int[] blockSize) {
+
+		final long[] gridSize = new long[dimensions.length];
+		for (int d = 0; d < dimensions.length; d++)
+			gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+		return gridSize;
+	}
+
+	static boolean parseGridPosition(final String key, final long[] gridPosition) {
+
+		final String[] components = key.split("/");
+		if (key.endsWith("/") || components.length != gridPosition.length)
+			return false;
+
+		try {
+			for (int d = 0; d < components.length; d++)
+				gridPosition[d] = Long.parseLong(components[d]);
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public long[] getGridSize() {
+
+		return gridSize.clone();
+	}
+
+	/**
+	 * @param gridPosition the grid position
+	 * @return true if the block exists, also for positions outside of the grid
+	 */
+	public boolean contains(final long... gridPosition) {
+
+		final long i = index(gridPosition);
+		return i < 0 || (words.get((int)(i >>> 6)) & (1L << i)) != 0;
+	}
+
+	public void add(final long... gridPosition) {
+
+		final long i = index(gridPosition);
+		if (i < 0)
+			return;
+
+		final int w = (int)(i >>> 6);
+		final long bit = 1L << i;
+		long word;
+		do {
+			word = words.get(w);
+		} while ((word & bit) == 0 && !words.compareAndSet(w, word, word | bit));
+	}
+
+	public void remove(final long... gridPosition) {
+
+		final long i = index(gridPosition);
+		if (i < 0)
+			return;
+
+		final int w = (int)(i >>> 6);
+		final long bit = 1L << i;
+		long word;
+		do {
+			word = words.get(w);
+		} while ((word & bit) != 0 && !words.compareAndSet(w, word, word & ~bit));
+	}
+
+	/**
+	 * @return the number of existing blocks
+	 */
+	public long cardinality() {
+
+		long count = 0;
+		for (int w = 0; w < words.length(); w++)
+			count += Long.bitCount(words.get(w));
+		return count;
+	}
+
+	/**
+	 * The linear index of {@code gridPosition}, or -1 if it is outside of the grid.
+	 */
+	private long index(final long[] gridPosition) {
+
+		if (gridPosition.length != gridSize.length)
+			return -1;
+
+		long i = 0;
+		for (int d = gridSize.length - 1; d >= 0; d--) {
+			if (gridPosition[d] < 0 || gridPosition[d] >= gridSize[d])
+				return -1;
+			i = i * gridSize[d] + gridPosition[d];
+		}
+		return i;
+	}
+}
@@ -0,0 +1,254 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the blocks at a sequence of grid positions with demand-driven
+ * backpressure.
+ * <p>
+ * Blocks are read concurrently, but only as many as have been requested
+ * and at most {@code maxInFlight} at a time, counting blocks that are read
+ * and blocks that wait for delivery. Blocks are delivered in the order of
+ * the grid positions, or in the order in which they arrive. Grid positions
+ * without a block are skipped.
+ * <p>
+ * Each subscription traverses the grid positions independently. Grid
+ * positions are iterated and blocks are delivered on the reading threads,
+ * not on the thread that calls {@link Subscription#request(long)}.
+ *
+ * @param <T> the type of the block data
+ */
+final class BlockPublisher<T> implements Publisher<DataBlock<T>> {
+
+	private static final class Slot<T> {
+
+		final DataBlock<T> block;
+
+		Slot(final DataBlock<T> block) {
+
+			this.block = block;
+		}
+	}
+
+	private final Supplier<Iterator<long[]>> gridPositions;
+	private final Function<long[], DataBlock<T>> readBlock;
+	private final boolean ordered;
+	private final int parallelism;
+	private final int maxInFlight;
+
+	/**
+	 * @param gridPositions creates the grid positions of one traversal
+	 * @param readBlock reads a block, returns null if it does not exist
+	 * @param ordered whether to deliver blocks in the order of the grid positions
+	 * @param parallelism the maximum number of concurrent reads
+	 * @param maxInFlight the maximum number of blocks read or waiting for delivery
+	 */
+	BlockPublisher(
+			final Supplier<Iterator<long[]>> gridPositions,
+			final Function<long[], DataBlock<T>> readBlock,
+			final boolean ordered,
+			final int parallelism,
+			final int maxInFlight) {
+
+		this.gridPositions = gridPositions;
+		this.readBlock = readBlock;
+		this.ordered = ordered;
+		this.parallelism = Math.max(1, parallelism);
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	@Override
+	public void subscribe(final Subscriber<? super DataBlock<T>> subscriber) {
+
+		Objects.requireNonNull(subscriber);
+		final BlockSubscription subscription = new BlockSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Grid positions parsed from the relative keys of a dataset listing,
+	 * skipping keys that are not grid positions.
+	 */
+	static Iterator<long[]> gridPositions(final Iterator<String> keys, final int numDimensions) {
+
+		return new Iterator<long[]>() {
+
+			private long[] next = null;
+
+			@Override
+			public boolean hasNext() {
+
+				while (next == null && keys.hasNext()) {
+					final long[] gridPosition = new long[numDimensions];
+					if (BlockPresenceIndex.parseGridPosition(keys.next(), gridPosition))
+						next = gridPosition;
+				}
+				return next != null;
+			}
+
+			@Override
+			public long[] next() {
+
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				final long[] gridPosition = next;
+				next = null;
+				return gridPosition;
+			}
+		};
+	}
+
+	private final class BlockSubscription implements Subscription {
+
+		private final Subscriber<? super DataBlock<T>> subscriber;
+		private final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-stream", parallelism);
+
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final AtomicInteger running = new AtomicInteger();
+		private final AtomicReference<Throwable> error = new AtomicReference<>();
+		private final ConcurrentSkipListMap<Long, Slot<T>> completed = new ConcurrentSkipListMap<>();
+		private volatile boolean cancelled = false;
+
+		/* only accessed in drain */
+		private Iterator<long[]> positions = null;
+		private boolean exhausted = false;
+		private long nextSubmit = 0;
+		private long nextEmit = 0;
+
+		BlockSubscription(final Subscriber<? super DataBlock<T>> subscriber) {
+
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(final long n) {
+
+			if (n <= 0)
+				error.compareAndSet(null, new IllegalArgumentException("Non-positive request " + n));
+			else
+				requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+
+			/* listing the grid positions may send requests, keep them off the requesting thread */
+			try {
+				executor.execute(this::drain);
+			} catch (final RejectedExecutionException e) {
+				/* cancelled or completed */
+			}
+		}
+
+		@Override
+		public void cancel() {
+
+			cancelled = true;
+			executor.shutdownNow();
+		}
+
+		private void drain() {
+
+			if (wip.getAndIncrement() != 0)
+				return;
+
+			do {
+				if (!cancelled)
+					drainLoop();
+			} while (wip.decrementAndGet() != 0);
+		}
+
+		private void drainLoop() {
+
+			final Throwable e = error.get();
+			if (e != null) {
+				cancel();
+				subscriber.onError(e);
+				return;
+			}
+
+			/* deliver */
+			long emitted = 0;
+			final long r = requested.get();
+			while (!cancelled) {
+				final Map.Entry<Long, Slot<T>> first = completed.firstEntry();
+				if (first == null || (ordered && first.getKey() != nextEmit))
+					break;
+
+				/* missing blocks need no demand */
+				if (first.getValue().block != null && emitted >= r)
+					break;
+
+				completed.remove(first.getKey());
+				nextEmit = first.getKey() + 1;
+				if (first.getValue().block != null) {
+					subscriber.onNext(first.getValue().block);
+					emitted++;
+				}
+			}
+			if (emitted > 0 && r != Long.MAX_VALUE)
+				requested.addAndGet(-emitted);
+
+			if (cancelled)
+				return;
+
+			/* read more */
+			try {
+				if (positions == null)
+					positions = gridPositions.get();
+
+				while (!exhausted) {
+					final long outstanding = running.get() + completed.size();
+					if (outstanding >= maxInFlight || outstanding >= requested.get())
+						break;
+
+					if (!positions.hasNext()) {
+						exhausted = true;
+						break;
+					}
+					submit(nextSubmit++, positions.next());
+				}
+			} catch (final RuntimeException t) {
+				cancel();
+				subscriber.onError(t);
+				return;
+			}
+
+			if (exhausted && running.get() == 0 && completed.isEmpty()) {
+				cancelled = true;
+				executor.shutdown();
+				subscriber.onComplete();
+			}
+		}
+
+		private void submit(final long sequence, final long[] gridPosition) {
+
+			running.incrementAndGet();
+			executor.execute(() -> {
+				try {
+					if (!cancelled)
+						completed.put(sequence, new Slot<>(readBlock.apply(gridPosition)));
+				} catch (final Throwable t) {
+					error.compareAndSet(null, t);
+				} finally {
+					running.decrementAndGet();
+					drain();
+				}
+			});
+		}
+	}
+}
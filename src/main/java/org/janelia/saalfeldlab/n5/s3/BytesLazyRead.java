@@ -0,0 +1,41 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.readdata.LazyRead;
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
+
+/**
+ * A {@link LazyRead} over bytes that are already in memory, e.g. pending
+ * writes that have not been uploaded yet.
+ */
+class BytesLazyRead implements LazyRead {
+
+	private final byte[] data;
+
+	BytesLazyRead(final byte[] data) {
+
+		this.data = data;
+	}
+
+	@Override
+	public ReadData materialize(final long offset, final long length) throws N5Exception.N5IOException {
+
+		if (offset < 0 || offset > data.length)
+			throw new N5Exception.N5IOException("Offset " + offset + " out of bounds for length " + data.length);
+
+		final long end = length > 0 ? Math.min(data.length, offset + length) : data.length;
+		return ReadData.from(Arrays.copyOfRange(data, (int)offset, (int)end));
+	}
+
+	@Override
+	public long size() {
+
+		return data.length;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,19 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} that holds resources until it is exhausted or closed.
+ * Close it when iteration stops early.
+ *
+ * @param <T> the type of the elements
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+
+	/**
+	 * Release the resources of this iterator. Further calls of
+	 * {@link #hasNext()} return false.
+	 */
+	@Override
+	void close();
+}
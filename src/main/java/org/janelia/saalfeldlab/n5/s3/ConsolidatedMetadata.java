@@ -0,0 +1,186 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
+import org.janelia.saalfeldlab.n5.readdata.VolatileReadData;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Reads and updates the consolidated metadata object at the container root,
+ * which holds the attributes of all groups and datasets of a container:
+ *
+ * <pre>
+ * {"groups": {"": {...}, "a": {...}, "a/b": {...}}}
+ * </pre>
+ *
+ * Group paths are normalized without leading or trailing slashes, the root
+ * is the empty string. Groups without attributes map to an empty object.
+ */
+final class ConsolidatedMetadata {
+
+	static final String CONSOLIDATED_ATTRIBUTES_JSON = "consolidated-attributes.json";
+
+	private static final String GROUPS_KEY = "groups";
+
+	private ConsolidatedMetadata() {
+	}
+
+	static String canonicalPath(final String path) {
+
+		String normalPath = N5URI.normalizeGroupPath(path);
+		while (normalPath.startsWith("/"))
+			normalPath = normalPath.substring(1);
+		while (normalPath.endsWith("/"))
+			normalPath = normalPath.substring(0, normalPath.length() - 1);
+		return normalPath;
+	}
+
+	static String parent(final String canonicalPath) {
+
+		final int i = canonicalPath.lastIndexOf('/');
+		return i < 0 ? "" : canonicalPath.substring(0, i);
+	}
+
+	static boolean isDataset(final JsonElement attributes) {
+
+		return attributes != null && attributes.isJsonObject() && attributes.getAsJsonObject().has("dimensions");
+	}
+
+	/**
+	 * @return the groups object, or null if there is no consolidated metadata
+	 */
+	static JsonObject read(final KeyValueAccess kva, final URI containerURI, final Gson gson) throws N5Exception {
+
+		final String path = kva.compose(containerURI, CONSOLIDATED_ATTRIBUTES_JSON);
+		final VolatileReadData readData = kva.createReadData(path);
+		try {
+			final String json = new String(readData.allBytes(), StandardCharsets.UTF_8);
+			return groups(gson.fromJson(json, JsonElement.class));
+		} catch (final N5Exception.N5NoSuchKeyException e) {
+			return null;
+		} finally {
+			closeQuietly(readData);
+		}
+	}
+
+	/**
+	 * @param root the parsed consolidated metadata object
+	 * @return its groups object
+	 */
+	static JsonObject groups(final JsonElement root) {
+
+		if (root != null && root.isJsonObject() && root.getAsJsonObject().has(GROUPS_KEY))
+			return root.getAsJsonObject().getAsJsonObject(GROUPS_KEY);
+		return new JsonObject();
+	}
+
+	static void write(final KeyValueAccess kva, final URI containerURI, final Gson gson, final JsonObject groups) throws N5Exception {
+
+		final JsonObject root = new JsonObject();
+		root.add(GROUPS_KEY, groups);
+		final byte[] json = gson.toJson(root).getBytes(StandardCharsets.UTF_8);
+		kva.write(kva.compose(containerURI, CONSOLIDATED_ATTRIBUTES_JSON), ReadData.from(json));
+	}
+
+	/**
+	 * Apply a change to the consolidated metadata. Uses a conditional
+	 * read-modify-write if {@code kva} has a
+	 * {@link S3IoPolicy.ConditionalWrite} policy, otherwise the stored object
+	 * is read and overwritten.
+	 */
+	static void update(final KeyValueAccess kva, final URI containerURI, final Gson gson, final Consumer<JsonObject> change) throws N5Exception {
+
+		if (kva instanceof AmazonS3KeyValueAccess && ((AmazonS3KeyValueAccess)kva).getIoPolicy() instanceof S3IoPolicy.ConditionalWrite) {
+			((AmazonS3KeyValueAccess)kva).update(kva.compose(containerURI, CONSOLIDATED_ATTRIBUTES_JSON), current -> {
+				final JsonObject root = current == null
+						? new JsonObject()
+						: gson.fromJson(new String(current.allBytes(), StandardCharsets.UTF_8), JsonObject.class);
+				if (!root.has(GROUPS_KEY))
+					root.add(GROUPS_KEY, new JsonObject());
+				change.accept(root.getAsJsonObject(GROUPS_KEY));
+				return ReadData.from(gson.toJson(root).getBytes(StandardCharsets.UTF_8));
+			});
+			return;
+		}
+
+		final JsonObject stored = read(kva, containerURI, gson);
+		final JsonObject groups = stored == null ? new JsonObject() : stored;
+		change.accept(groups);
+		write(kva, containerURI, gson, groups);
+	}
+
+	/**
+	 * Set the attributes of a group, and add its ancestors if missing.
+	 */
+	static void put(final JsonObject groups, final String canonicalPath, final JsonElement attributes) {
+
+		groups.add(canonicalPath, attributes == null ? new JsonObject() : attributes.deepCopy());
+		addAncestors(groups, canonicalPath);
+	}
+
+	/**
+	 * Add a group without attributes and its ancestors if missing.
+	 */
+	static void add(final JsonObject groups, final String canonicalPath) {
+
+		if (!groups.has(canonicalPath))
+			groups.add(canonicalPath, new JsonObject());
+		addAncestors(groups, canonicalPath);
+	}
+
+	private static void addAncestors(final JsonObject groups, final String canonicalPath) {
+
+		for (String path = canonicalPath; !path.isEmpty();) {
+			path = parent(path);
+			if (!groups.has(path))
+				groups.add(path, new JsonObject());
+		}
+	}
+
+	/**
+	 * Remove a group and all of its descendants.
+	 */
+	static void remove(final JsonObject groups, final String canonicalPath) {
+
+		if (canonicalPath.isEmpty()) {
+			for (final String path : new ArrayList<>(groups.keySet()))
+				groups.remove(path);
+			return;
+		}
+
+		final String prefix = canonicalPath + "/";
+		for (final String path : new ArrayList<>(groups.keySet()))
+			if (path.equals(canonicalPath) || path.startsWith(prefix))
+				groups.remove(path);
+	}
+
+	static String[] children(final JsonObject groups, final String canonicalPath) {
+
+		final List<String> children = new ArrayList<>();
+		for (final Map.Entry<String, JsonElement> entry : groups.entrySet()) {
+			final String path = entry.getKey();
+			if (!path.isEmpty() && parent(path).equals(canonicalPath))
+				children.add(path.substring(path.lastIndexOf('/') + 1));
+		}
+		return children.toArray(new String[0]);
+	}
+
+	private static void closeQuietly(final AutoCloseable closeable) {
+
+		try {
+			closeable.close();
+		} catch (final Exception ignore) {}
+	}
+}
@@ -1,12 +1,28 @@
 package org.janelia.saalfeldlab.n5.s3;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.reactivestreams.Publisher;
+
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import software.amazon.awssdk.services.s3.S3Client;
 
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Exception;
 import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5URI;
 
 /**
  *
@@ -17,6 +33,23 @@ import org.janelia.saalfeldlab.n5.N5KeyValueReader;
 @Deprecated
 public class N5AmazonS3Reader extends N5KeyValueReader {
 
+	/* the attribute that lists the codecs of a dataset */
+	static final String CODECS_KEY = "codecs";
+
+	/* the name of the sharding codec, shared by n5 and zarr v3 */
+	static final String SHARDING_CODEC = "sharding_indexed";
+
+	private final ConcurrentHashMap<String, BlockPresenceIndex> blockPresenceIndices = new ConcurrentHashMap<>();
+
+	private volatile RevalidatingAttributesCache consolidatedMetadata = null;
+
+	private volatile RevalidatingAttributesCache revalidatingAttributes = null;
+
+	private volatile BlockPrefetcher blockPrefetcher = null;
+
+	/* whether datasets are sharded, looked up once while prefetching */
+	private final ConcurrentHashMap<String, Boolean> shardedDatasets = new ConcurrentHashMap<>();
+
 	/**
 	 * Opens an {@link N5Reader} with an {@link S3Client} storage backend.
 	 *
@@ -173,6 +206,542 @@ public class N5AmazonS3Reader extends N5KeyValueReader {
 		this(s3, bucketName, "/", new GsonBuilder(), false);
 	}
 
+	/**
+	 * Serve attributes, existence and the group tree from the consolidated
+	 * metadata object at the container root, maintained by
+	 * {@link N5AmazonS3Writer#setConsolidateMetadata(boolean)}, which is
+	 * loaded with one request. Groups and datasets that are not in the
+	 * consolidated metadata are read as usual.
+	 * <p>
+	 * The consolidated metadata are not revalidated, call
+	 * {@link #refreshConsolidatedMetadata()} to see changes, or use
+	 * {@link #useConsolidatedMetadata(long, TimeUnit)}. Changes by writers
+	 * that do not maintain the consolidated metadata are not visible for
+	 * groups and datasets that are in the consolidated metadata.
+	 *
+	 * @return true if the container has consolidated metadata
+	 * @throws N5Exception if the consolidated metadata could not be read
+	 */
+	public boolean useConsolidatedMetadata() throws N5Exception {
+
+		return useConsolidatedMetadata(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Serve attributes, existence and the group tree from the consolidated
+	 * metadata object, see {@link #useConsolidatedMetadata()}, and revalidate
+	 * it with a conditional GET ({@code If-None-Match}) on its ETag once it
+	 * is older than {@code ttl}. Changes by writers that maintain the
+	 * consolidated metadata become visible after at most {@code ttl}.
+	 *
+	 * @param ttl the time during which the consolidated metadata are used without revalidation, 0 to revalidate on every access
+	 * @param unit the unit of {@code ttl}
+	 * @return true if the container has consolidated metadata
+	 * @throws N5Exception if the consolidated metadata could not be read
+	 */
+	public boolean useConsolidatedMetadata(final long ttl, final TimeUnit unit) throws N5Exception {
+
+		consolidatedMetadata = new RevalidatingAttributesCache((AmazonS3KeyValueAccess)getKeyValueAccess(), unit.toNanos(ttl));
+		return refreshConsolidatedMetadata();
+	}
+
+	/**
+	 * Revalidate the consolidated metadata, and reload them if they changed.
+	 *
+	 * @return true if the container has consolidated metadata
+	 * @throws N5Exception if the consolidated metadata could not be read
+	 */
+	public boolean refreshConsolidatedMetadata() throws N5Exception {
+
+		final RevalidatingAttributesCache consolidated = consolidatedMetadata;
+		if (consolidated == null)
+			return useConsolidatedMetadata();
+
+		return consolidated.get(consolidatedMetadataPath(), getGson(), true) != null;
+	}
+
+	private String consolidatedMetadataPath() {
+
+		return getKeyValueAccess().compose(getURI(), ConsolidatedMetadata.CONSOLIDATED_ATTRIBUTES_JSON);
+	}
+
+	/**
+	 * @return the groups of the consolidated metadata, revalidated if
+	 *         necessary, or null if they are not used or do not exist
+	 */
+	private JsonObject consolidatedGroups() throws N5Exception {
+
+		final RevalidatingAttributesCache consolidated = consolidatedMetadata;
+		if (consolidated == null)
+			return null;
+
+		final String path = consolidatedMetadataPath();
+		if (!consolidated.serves(path))
+			return ConsolidatedMetadata.read(getKeyValueAccess(), getURI(), getGson());
+
+		final JsonElement root = consolidated.get(path, getGson());
+		return root == null ? null : ConsolidatedMetadata.groups(root);
+	}
+
+	/**
+	 * Keep attributes with the ETag of their {@code attributes.json} and
+	 * revalidate them with a conditional GET ({@code If-None-Match}) once
+	 * they are older than {@code ttl}. Unchanged attributes are confirmed by
+	 * the store without transferring them again, so that changes by other
+	 * writers become visible after at most {@code ttl} at the cost of one
+	 * small request.
+	 * <p>
+	 * Consolidated metadata, if used, takes precedence. Use with
+	 * {@code cacheMeta == false}, otherwise existence checks and dataset
+	 * attributes may still be served from the permanent cache.
+	 *
+	 * @param ttl the time during which attributes are used without revalidation, 0 to revalidate on every access
+	 * @param unit the unit of {@code ttl}
+	 */
+	public void enableAttributeRevalidation(final long ttl, final TimeUnit unit) {
+
+		revalidatingAttributes = new RevalidatingAttributesCache((AmazonS3KeyValueAccess)getKeyValueAccess(), unit.toNanos(ttl));
+	}
+
+	/**
+	 * Stop revalidating attributes and drop the revalidated attributes.
+	 */
+	public void disableAttributeRevalidation() {
+
+		revalidatingAttributes = null;
+	}
+
+	@Override
+	public JsonElement getAttributes(final String pathName) throws N5Exception {
+
+		final JsonObject groups = consolidatedGroups();
+		if (groups != null) {
+			final JsonElement attributes = groups.get(ConsolidatedMetadata.canonicalPath(pathName));
+			/* the consolidated metadata are shared, callers may modify what they get */
+			if (attributes != null)
+				return attributes.isJsonObject() && attributes.getAsJsonObject().size() == 0 ? null : attributes.deepCopy();
+		}
+
+		final RevalidatingAttributesCache revalidating = revalidatingAttributes;
+		if (revalidating != null) {
+			final String attributesPath = getKeyValueAccess().compose(getURI(), N5URI.normalizeGroupPath(pathName), ATTRIBUTES_JSON);
+			if (revalidating.serves(attributesPath))
+				return revalidating.get(attributesPath, getGson());
+		}
+
+		return super.getAttributes(pathName);
+	}
+
+	@Override
+	public boolean exists(final String pathName) {
+
+		final JsonObject groups = consolidatedGroups();
+		if (groups != null && groups.has(ConsolidatedMetadata.canonicalPath(pathName)))
+			return true;
+
+		return super.exists(pathName);
+	}
+
+	@Override
+	public String[] list(final String pathName) throws N5Exception {
+
+		final JsonObject groups = consolidatedGroups();
+		if (groups != null) {
+			final String path = ConsolidatedMetadata.canonicalPath(pathName);
+			final JsonElement attributes = groups.get(path);
+			/* datasets are listed as usual */
+			if (attributes != null && !ConsolidatedMetadata.isDataset(attributes))
+				return ConsolidatedMetadata.children(groups, path);
+		}
+		return super.list(pathName);
+	}
+
+	/**
+	 * Build a {@link BlockPresenceIndex} for a dataset from one listing of
+	 * the dataset. Afterwards, {@link #readBlock(String, DatasetAttributes, long...)}
+	 * returns {@code null} for blocks that are not in the index without
+	 * sending a request. Call again to rebuild the index, e.g. after other
+	 * processes wrote to the dataset.
+	 * <p>
+	 * The index covers the block grid of unsharded datasets. Keys of shards
+	 * are not block grid positions, so sharded datasets are rejected.
+	 *
+	 * @param datasetPath the dataset
+	 * @return the index, which can be updated by the caller
+	 * @throws N5Exception if the dataset does not exist, is sharded, or could not be listed
+	 */
+	public BlockPresenceIndex indexBlockPresence(final String datasetPath) throws N5Exception {
+
+		final String normalPath = N5URI.normalizeGroupPath(datasetPath);
+		if (isSharded(normalPath))
+			throw new N5Exception("Block presence index not supported for sharded dataset " + datasetPath);
+
+		final DatasetAttributes attributes = getDatasetAttributes(normalPath);
+		if (attributes == null)
+			throw new N5Exception.N5IOException("No dataset at " + datasetPath);
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)getKeyValueAccess();
+		final String[] keys = kva.listRecursive(kva.compose(getURI(), normalPath), 16);
+		final long[] gridSize = BlockPresenceIndex.gridSize(attributes.getDimensions(), attributes.getBlockSize());
+		final BlockPresenceIndex index = BlockPresenceIndex.fromKeys(gridSize, keys);
+		blockPresenceIndices.put(normalPath, index);
+		return index;
+	}
+
+	/**
+	 * Whether the dataset at {@code normalPath} stores its blocks in shards,
+	 * i.e. one of the codecs in its attributes is the sharding codec.
+	 */
+	boolean isSharded(final String normalPath) {
+
+		return isSharded(getAttributes(normalPath));
+	}
+
+	static boolean isSharded(final JsonElement attributes) {
+
+		if (attributes == null || !attributes.isJsonObject())
+			return false;
+
+		final JsonElement codecs = attributes.getAsJsonObject().get(CODECS_KEY);
+		if (codecs == null || !codecs.isJsonArray())
+			return false;
+
+		for (final JsonElement codec : codecs.getAsJsonArray()) {
+			if (SHARDING_CODEC.equals(codecName(codec)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The name of a codec descriptor, {@code {"name": ..., "configuration": ...}},
+	 * or null if it has none.
+	 */
+	private static String codecName(final JsonElement codec) {
+
+		if (!codec.isJsonObject())
+			return null;
+
+		for (final String key : new String[]{"name", "type"}) {
+			final JsonElement name = codec.getAsJsonObject().get(key);
+			if (name != null && name.isJsonPrimitive() && name.getAsJsonPrimitive().isString())
+				return name.getAsString();
+		}
+		return null;
+	}
+
+	/**
+	 * Stop using the {@link BlockPresenceIndex} of a dataset.
+	 *
+	 * @param datasetPath the dataset
+	 */
+	public void removeBlockPresenceIndex(final String datasetPath) {
+
+		blockPresenceIndices.remove(N5URI.normalizeGroupPath(datasetPath));
+	}
+
+	/**
+	 * Prefetch blocks that are likely to be read next. Linear sweeps through
+	 * the block grid and reads of neighbouring blocks are recognized per
+	 * dataset, the predicted blocks are fetched in the background and kept
+	 * in a bounded buffer of the {@link AmazonS3KeyValueAccess} until they
+	 * are read. Predictions that turn out wrong are cancelled. Prefetches are
+	 * read with {@link ReadPriority#PREFETCH}, behind reads submitted with
+	 * {@link ReadPriority#INTERACTIVE}.
+	 * <p>
+	 * Predicted blocks are addressed at their grid positions, so reads of
+	 * sharded datasets are not prefetched. Whether a dataset is sharded is
+	 * looked up at its first read after prefetching is enabled. Blocks that
+	 * are absent in a {@link BlockPresenceIndex} are not prefetched.
+	 *
+	 * @param depth the number of blocks prefetched ahead of a sweep
+	 * @param maxBytes the maximum total size of prefetched blocks that were not yet read
+	 * @param maxInFlight the maximum number of queued and running prefetches
+	 */
+	public void enablePrefetch(final int depth, final long maxBytes, final int maxInFlight) {
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)getKeyValueAccess();
+		kva.enablePrefetch(maxBytes, maxInFlight);
+		shardedDatasets.clear();
+		blockPrefetcher = new BlockPrefetcher(depth, kva::prefetch, kva::cancelPrefetch);
+	}
+
+	/**
+	 * Cancel all prefetches and stop prefetching.
+	 */
+	public void disablePrefetch() {
+
+		final BlockPrefetcher prefetcher = blockPrefetcher;
+		blockPrefetcher = null;
+		if (prefetcher != null)
+			prefetcher.reset();
+		((AmazonS3KeyValueAccess)getKeyValueAccess()).disablePrefetch();
+	}
+
+	@Override
+	public <T> DataBlock<T> readBlock(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final long... gridPosition) throws N5Exception {
+
+		final String normalPath = N5URI.normalizeGroupPath(pathName);
+		final BlockPresenceIndex index = blockPresenceIndices.isEmpty() ? null : blockPresenceIndices.get(normalPath);
+		if (index != null && !index.contains(gridPosition))
+			return null;
+
+		final BlockPrefetcher prefetcher = blockPrefetcher;
+		if (prefetcher != null && !shardedDatasets.computeIfAbsent(normalPath, this::isSharded)) {
+			final long[] gridSize = BlockPresenceIndex.gridSize(datasetAttributes.getDimensions(), datasetAttributes.getBlockSize());
+			prefetcher.observe(getKeyValueAccess().compose(getURI(), normalPath), gridPosition, gridSize, index);
+		}
+
+		return super.readBlock(pathName, datasetAttributes, gridPosition);
+	}
+
+	/**
+	 * Read many blocks of a dataset concurrently. {@code consumer} is called
+	 * on the calling thread for each block in the order in which the blocks
+	 * arrive, with {@code null} for blocks that do not exist.
+	 * <p>
+	 * At most {@code parallelism} blocks are read at a time, and at most
+	 * {@code 2 * parallelism} read blocks wait for {@code consumer}. The first
+	 * failed read cancels the remaining reads and is thrown.
+	 * <p>
+	 * Every block is read with {@link #readBlock(String, DatasetAttributes, long...)},
+	 * blocks in the same shard are not combined into one request: the n5
+	 * shard codec reads the shard index and each block separately. A
+	 * {@link S3IoPolicy.Unsafe#setTailPrefetch(int) tail prefetch} that
+	 * covers the shard index saves the size request for each of them.
+	 *
+	 * @param <T> the type of the block data
+	 * @param pathName the dataset
+	 * @param datasetAttributes the dataset attributes
+	 * @param gridPositions the blocks to read, e.g. from {@link #gridPositions(long[], long[])}
+	 * @param parallelism the maximum number of concurrent reads
+	 * @param consumer receives each grid position and its block
+	 * @throws N5Exception if a block could not be read
+	 */
+	public <T> void readBlocks(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final Collection<long[]> gridPositions,
+			final int parallelism,
+			final BiConsumer<long[], DataBlock<T>> consumer) throws N5Exception {
+
+		try (final BlockBatch<T> batch = blockBatch(pathName, datasetAttributes, gridPositions, parallelism)) {
+			while (batch.hasNext()) {
+				final BlockBatch.Result<T> result = batch.next();
+				consumer.accept(result.gridPosition, result.block);
+			}
+		}
+	}
+
+	/**
+	 * Read many blocks of a dataset concurrently, see
+	 * {@link #readBlocks(String, DatasetAttributes, Collection, int, BiConsumer)}.
+	 * The iterator returns the existing blocks in the order in which they
+	 * arrive. Reads are submitted as the iterator is consumed. The reading
+	 * threads stop when the iterator is exhausted, close it to stop them
+	 * earlier.
+	 *
+	 * @param <T> the type of the block data
+	 * @param pathName the dataset
+	 * @param datasetAttributes the dataset attributes
+	 * @param gridPositions the blocks to read
+	 * @param parallelism the maximum number of concurrent reads
+	 * @return the existing blocks
+	 */
+	public <T> CloseableIterator<DataBlock<T>> readBlocks(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final Collection<long[]> gridPositions,
+			final int parallelism) {
+
+		final BlockBatch<T> batch = blockBatch(pathName, datasetAttributes, gridPositions, parallelism);
+		return new CloseableIterator<DataBlock<T>>() {
+
+			private DataBlock<T> next = null;
+
+			@Override
+			public boolean hasNext() {
+
+				while (next == null && batch.hasNext())
+					next = batch.next().block;
+				return next != null;
+			}
+
+			@Override
+			public DataBlock<T> next() {
+
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				final DataBlock<T> block = next;
+				next = null;
+				return block;
+			}
+
+			@Override
+			public void close() {
+
+				next = null;
+				batch.close();
+			}
+		};
+	}
+
+	/**
+	 * All grid positions in an interval of the block grid, first dimension
+	 * fastest.
+	 *
+	 * @param min the first grid position, inclusive
+	 * @param max the last grid position, inclusive
+	 * @return the grid positions
+	 */
+	public static List<long[]> gridPositions(final long[] min, final long[] max) {
+
+		final List<long[]> positions = new ArrayList<>();
+		for (int d = 0; d < min.length; d++)
+			if (max[d] < min[d])
+				return positions;
+
+		final long[] position = min.clone();
+		while (true) {
+			positions.add(position.clone());
+			int d = 0;
+			for (; d < position.length && position[d] == max[d]; d++)
+				position[d] = min[d];
+			if (d == position.length)
+				return positions;
+			position[d]++;
+		}
+	}
+
+	/**
+	 * Stream all blocks of a dataset with demand-driven backpressure. The
+	 * blocks are found with a listing of the dataset that is consumed as
+	 * blocks are requested, so that the number of blocks held in memory is
+	 * bounded independently of the size of the dataset.
+	 * <p>
+	 * Blocks are read concurrently, but only as many as the subscriber has
+	 * requested, and at most as many as fit into {@code maxInFlightBytes}
+	 * (estimated from the uncompressed block size), counting blocks that
+	 * are read and blocks that wait for delivery. Each subscription traverses
+	 * the dataset independently.
+	 * <p>
+	 * Grid positions are parsed from the keys of the listing, so sharded
+	 * datasets are rejected. Use
+	 * {@link #streamBlocks(String, DatasetAttributes, Iterable, boolean, int, long)}
+	 * for sharded datasets and other traversals.
+	 *
+	 * @param <T> the type of the block data
+	 * @param pathName the dataset
+	 * @param datasetAttributes the dataset attributes
+	 * @param ordered whether to deliver blocks in listing order, otherwise in the order in which they arrive
+	 * @param parallelism the maximum number of concurrent reads
+	 * @param maxInFlightBytes the maximum size of blocks read or waiting for delivery
+	 * @return the blocks
+	 * @throws N5Exception if the dataset is sharded
+	 */
+	public <T> Publisher<DataBlock<T>> streamBlocks(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final boolean ordered,
+			final int parallelism,
+			final long maxInFlightBytes) throws N5Exception {
+
+		final String normalPath = N5URI.normalizeGroupPath(pathName);
+		if (isSharded(normalPath))
+			throw new N5Exception("Streaming the listing of a sharded dataset is not supported: " + pathName);
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)getKeyValueAccess();
+		final String datasetPath = kva.compose(getURI(), normalPath);
+		final int numDimensions = datasetAttributes.getNumDimensions();
+		return new BlockPublisher<>(
+				() -> BlockPublisher.gridPositions(kva.iterateKeys(datasetPath), numDimensions),
+				blockReader(pathName, datasetAttributes),
+				ordered,
+				parallelism,
+				maxInFlightBlocks(datasetAttributes, maxInFlightBytes));
+	}
+
+	/**
+	 * Stream the blocks at {@code gridPositions} with demand-driven
+	 * backpressure, see {@link #streamBlocks(String, DatasetAttributes, boolean, int, long)}.
+	 * Grid positions without a block are skipped.
+	 *
+	 * @param <T> the type of the block data
+	 * @param pathName the dataset
+	 * @param datasetAttributes the dataset attributes
+	 * @param gridPositions the grid positions, iterated once per subscription
+	 * @param ordered whether to deliver blocks in the order of {@code gridPositions}, otherwise in the order in which they arrive
+	 * @param parallelism the maximum number of concurrent reads
+	 * @param maxInFlightBytes the maximum size of blocks read or waiting for delivery
+	 * @return the blocks
+	 */
+	public <T> Publisher<DataBlock<T>> streamBlocks(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final Iterable<long[]> gridPositions,
+			final boolean ordered,
+			final int parallelism,
+			final long maxInFlightBytes) {
+
+		return new BlockPublisher<>(
+				gridPositions::iterator,
+				blockReader(pathName, datasetAttributes),
+				ordered,
+				parallelism,
+				maxInFlightBlocks(datasetAttributes, maxInFlightBytes));
+	}
+
+	private static int maxInFlightBlocks(final DatasetAttributes datasetAttributes, final long maxInFlightBytes) {
+
+		long blockBytes;
+		switch (datasetAttributes.getDataType()) {
+		case UINT8:
+		case INT8:
+			blockBytes = 1;
+			break;
+		case UINT16:
+		case INT16:
+			blockBytes = 2;
+			break;
+		case UINT32:
+		case INT32:
+		case FLOAT32:
+			blockBytes = 4;
+			break;
+		default:
+			blockBytes = 8;
+		}
+		for (final int s : datasetAttributes.getBlockSize())
+			blockBytes *= s;
+
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / Math.max(1, blockBytes)));
+	}
+
+	private <T> BlockBatch<T> blockBatch(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final Collection<long[]> gridPositions,
+			final int parallelism) {
+
+		return new BlockBatch<>(gridPositions.iterator(), blockReader(pathName, datasetAttributes), parallelism);
+	}
+
+	/**
+	 * Reads blocks without observing them for prefetching, skipping blocks
+	 * that are absent in the {@link BlockPresenceIndex}.
+	 */
+	private <T> Function<long[], DataBlock<T>> blockReader(final String pathName, final DatasetAttributes datasetAttributes) {
+
+		final BlockPresenceIndex index = blockPresenceIndices.get(N5URI.normalizeGroupPath(pathName));
+		return gridPosition -> index != null && !index.contains(gridPosition)
+				? null
+				: super.readBlock(pathName, datasetAttributes, gridPosition);
+	}
+
 //	/**
 //	 * Determines whether the current N5 container is stored at the root level of the bucket.
 //	 *
@@ -1,10 +1,16 @@
 package org.janelia.saalfeldlab.n5.s3;
 
+import java.nio.file.Path;
+
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
 import org.janelia.saalfeldlab.n5.N5KeyValueWriter;
+import org.janelia.saalfeldlab.n5.N5URI;
 
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import software.amazon.awssdk.services.s3.S3Client;
 
@@ -18,6 +24,10 @@ import software.amazon.awssdk.services.s3.S3Client;
 @Deprecated
 public class N5AmazonS3Writer extends N5KeyValueWriter {
 
+	private boolean consolidateMetadata = false;
+
+	private AttributeBatch attributeBatch = null;
+
 	/**
 	 * Opens an {@link N5Writer} with an {@link S3Client} storage backend.
      *
@@ -165,4 +175,221 @@ public class N5AmazonS3Writer extends N5KeyValueWriter {
 
 		this(s3, bucketName, "/", new GsonBuilder());
 	}
+
+	/**
+	 * Maintain a consolidated metadata object at the container root that
+	 * holds the attributes of all groups and datasets, so that
+	 * {@link N5AmazonS3Reader#useConsolidatedMetadata()} can open the container
+	 * with a single request. Every attribute change, group creation and
+	 * removal by this writer also updates the consolidated metadata.
+	 * <p>
+	 * If the container has no consolidated metadata yet, it is created from
+	 * the current content, see {@link #consolidateMetadata()}.
+	 * <p>
+	 * Every change reads and rewrites the whole consolidated metadata
+	 * object, enable {@link #enableAttributeBatching(long) attribute batching}
+	 * to combine changes. Concurrent writers lose each other's changes unless
+	 * the {@link AmazonS3KeyValueAccess} uses a
+	 * {@link S3IoPolicy.ConditionalWrite} policy, with which the rewrite is
+	 * conditional on the ETag that was read and retried on conflicts.
+	 *
+	 * @param consolidateMetadata whether to maintain consolidated metadata
+	 * @throws N5Exception if the consolidated metadata could not be created
+	 */
+	public void setConsolidateMetadata(final boolean consolidateMetadata) throws N5Exception {
+
+		if (consolidateMetadata && ConsolidatedMetadata.read(getKeyValueAccess(), getURI(), getGson()) == null)
+			consolidateMetadata();
+
+		this.consolidateMetadata = consolidateMetadata;
+	}
+
+	/**
+	 * Create or replace the consolidated metadata object from a listing of
+	 * the container and the attributes of all groups and datasets.
+	 *
+	 * @throws N5Exception if the container could not be listed or the attributes could not be read
+	 */
+	public void consolidateMetadata() throws N5Exception {
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)getKeyValueAccess();
+		final String[] keys = kva.listRecursive(getURI().toString(), 16);
+		final String attributesSuffix = "/" + N5KeyValueReader.ATTRIBUTES_JSON;
+
+		final JsonObject groups = new JsonObject();
+		for (final String key : keys) {
+			if (key.equals(N5KeyValueReader.ATTRIBUTES_JSON))
+				ConsolidatedMetadata.put(groups, "", getAttributes("/"));
+			else if (key.endsWith(attributesSuffix)) {
+				final String path = key.substring(0, key.length() - attributesSuffix.length());
+				ConsolidatedMetadata.put(groups, path, getAttributes(path));
+			}
+		}
+
+		/* directory markers of groups without attributes, but not of block directories in datasets */
+		for (final String key : keys) {
+			if (!key.endsWith("/"))
+				continue;
+			final String path = key.substring(0, key.length() - 1);
+			boolean inDataset = false;
+			for (String ancestor = path; !ancestor.isEmpty() && !inDataset;) {
+				ancestor = ConsolidatedMetadata.parent(ancestor);
+				inDataset = ConsolidatedMetadata.isDataset(groups.get(ancestor));
+			}
+			if (!inDataset)
+				ConsolidatedMetadata.add(groups, path);
+		}
+
+		ConsolidatedMetadata.write(kva, getURI(), getGson(), groups);
+	}
+
+	/**
+	 * Accumulate attribute changes per group in memory and write the merged
+	 * attributes of each group once, on {@link #flushAttributes()},
+	 * {@link #close()}, or after {@code debounceMillis} without further
+	 * changes to that group. Reads of attributes through this writer include
+	 * the pending changes, other readers see them only after they are
+	 * written.
+	 *
+	 * @param debounceMillis the interval without changes after which a group is written, 0 to write only on flush and close
+	 */
+	public synchronized void enableAttributeBatching(final long debounceMillis) {
+
+		if (attributeBatch == null)
+			attributeBatch = new AttributeBatch(this::writeAttributesNow, debounceMillis);
+	}
+
+	/**
+	 * Write pending attribute changes and stop batching them.
+	 *
+	 * @throws N5Exception if pending attributes could not be written
+	 */
+	public synchronized void disableAttributeBatching() throws N5Exception {
+
+		if (attributeBatch != null) {
+			final AttributeBatch batch = attributeBatch;
+			attributeBatch = null;
+			batch.close();
+		}
+	}
+
+	/**
+	 * Write all pending attribute changes, see {@link #enableAttributeBatching(long)}.
+	 *
+	 * @throws N5Exception if pending attributes could not be written
+	 */
+	public void flushAttributes() throws N5Exception {
+
+		final AttributeBatch batch = attributeBatch;
+		if (batch != null)
+			batch.flush();
+	}
+
+	@Override
+	public JsonElement getAttributes(final String pathName) throws N5Exception {
+
+		final AttributeBatch batch = attributeBatch;
+		if (batch != null) {
+			final JsonElement pending = batch.get(N5URI.normalizeGroupPath(pathName));
+			if (pending != null)
+				return pending;
+		}
+		return super.getAttributes(pathName);
+	}
+
+	@Override
+	public void writeAttributes(final String normalGroupPath, final JsonElement attributes) throws N5Exception {
+
+		final AttributeBatch batch = attributeBatch;
+		if (batch == null)
+			writeAttributesNow(normalGroupPath, attributes);
+		else if (attributes == null)
+			/* pending attributes must not be written over the removal */
+			batch.writeNow(normalGroupPath, null);
+		else
+			batch.put(normalGroupPath, attributes);
+	}
+
+	private void writeAttributesNow(final String normalGroupPath, final JsonElement attributes) throws N5Exception {
+
+		super.writeAttributes(normalGroupPath, attributes);
+		if (consolidateMetadata) {
+			final String path = ConsolidatedMetadata.canonicalPath(normalGroupPath);
+			ConsolidatedMetadata.update(getKeyValueAccess(), getURI(), getGson(), groups -> ConsolidatedMetadata.put(groups, path, attributes));
+		}
+	}
+
+	@Override
+	public void createGroup(final String path) throws N5Exception {
+
+		super.createGroup(path);
+		if (consolidateMetadata) {
+			final String canonicalPath = ConsolidatedMetadata.canonicalPath(path);
+			ConsolidatedMetadata.update(getKeyValueAccess(), getURI(), getGson(), groups -> ConsolidatedMetadata.add(groups, canonicalPath));
+		}
+	}
+
+	@Override
+	public boolean remove(final String path) throws N5Exception {
+
+		final AttributeBatch batch = attributeBatch;
+		if (batch != null)
+			batch.discard(N5URI.normalizeGroupPath(path));
+
+		final boolean removed = super.remove(path);
+		final String canonicalPath = ConsolidatedMetadata.canonicalPath(path);
+		/* removing the root removes the consolidated metadata with the container */
+		if (consolidateMetadata && !canonicalPath.isEmpty()) {
+			ConsolidatedMetadata.update(getKeyValueAccess(), getURI(), getGson(), groups -> ConsolidatedMetadata.remove(groups, canonicalPath));
+		}
+		return removed;
+	}
+
+	/**
+	 * Move or rename a group or dataset, including all of its children.
+	 * <p>
+	 * Objects are copied server-side in parallel, then the source is removed
+	 * with parallel batch deletes. If a checkpoint file is given, an
+	 * interrupted move is completed by calling this method again with the same
+	 * arguments.
+	 *
+	 * @param sourcePath the group or dataset to move
+	 * @param targetPath the new path, must not be inside of {@code sourcePath} or vice versa
+	 * @param parallelism the number of concurrent requests
+	 * @param checkpoint a file to store progress for resuming an interrupted move, may be null
+	 * @throws N5Exception if the move failed
+	 */
+	public void move(final String sourcePath, final String targetPath, final int parallelism, final Path checkpoint) throws N5Exception {
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)getKeyValueAccess();
+		final String source = kva.compose(getURI(), N5URI.normalizeGroupPath(sourcePath));
+		final String target = kva.compose(getURI(), N5URI.normalizeGroupPath(targetPath));
+
+		/* write pending attributes and uploads before they are copied */
+		flushAttributes();
+		kva.flush();
+		try {
+			kva.move(source, target, parallelism, checkpoint);
+		} finally {
+			if (cacheMeta())
+				getCache().clear();
+		}
+	}
+
+	/**
+	 * Writes pending attribute changes before closing. The
+	 * {@link AmazonS3KeyValueAccess} may be shared and is not closed, flush
+	 * or close it to wait for its pending asynchronous writes.
+	 *
+	 * @throws N5Exception.N5IOException if pending attribute changes could not be written
+	 */
+	@Override
+	public void close() throws N5Exception.N5IOException {
+
+		try {
+			disableAttributeBatching();
+		} finally {
+			super.close();
+		}
+	}
 }
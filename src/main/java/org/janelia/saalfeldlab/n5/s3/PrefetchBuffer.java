@@ -0,0 +1,167 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Objects fetched ahead of time, in the expectation that they will be read
+ * soon.
+ * <p>
+ * Fetches are submitted to a {@link S3ReadScheduler} with
+ * {@link ReadPriority#PREFETCH}. Fetched objects are kept until they are
+ * taken, invalidated, or evicted in least recently used order when their
+ * total size exceeds the budget. The number of queued and running fetches
+ * is bounded, further prefetch requests are dropped.
+ */
+final class PrefetchBuffer {
+
+	private static final class Entry {
+
+		final S3ReadScheduler.ScheduledRead read;
+		long size = 0;
+
+		Entry(final S3ReadScheduler.ScheduledRead read) {
+
+			this.read = read;
+		}
+	}
+
+	private final Supplier<S3ReadScheduler> scheduler;
+	private final long maxBytes;
+	private final int maxInFlight;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+	private int inFlight = 0;
+
+	/**
+	 * @param scheduler provides the scheduler that runs the fetches
+	 * @param maxBytes the maximum total size of fetched objects that were not yet taken
+	 * @param maxInFlight the maximum number of queued and running fetches
+	 */
+	PrefetchBuffer(final Supplier<S3ReadScheduler> scheduler, final long maxBytes, final int maxInFlight) {
+
+		this.scheduler = scheduler;
+		this.maxBytes = maxBytes;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * Start fetching {@code key} unless it is fetched already or too many
+	 * fetches are in flight.
+	 */
+	synchronized void prefetch(final String key) {
+
+		if (entries.containsKey(key) || inFlight >= maxInFlight)
+			return;
+
+		inFlight++;
+		entries.put(key, new Entry(scheduler.get().submit(key, ReadPriority.PREFETCH, this::completed)));
+	}
+
+	/**
+	 * Take the prefetched object at {@code key}, waiting for it if it is
+	 * being fetched. A fetch that is still queued behind other reads is
+	 * cancelled instead, the caller reads the object directly rather than
+	 * waiting with the priority of a prefetch.
+	 *
+	 * @return the object, or null if {@code key} was not prefetched, its fetch was still queued, or the fetch failed
+	 */
+	byte[] take(final String key) {
+
+		final Entry entry;
+		synchronized (this) {
+			entry = entries.remove(key);
+			if (entry == null)
+				return null;
+			bytes -= entry.size;
+		}
+
+		if (entry.read.cancelIfQueued())
+			return null;
+
+		try {
+			return entry.read.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException | CancellationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Cancel the fetch of {@code key} if it is still in flight. Fetched
+	 * objects are kept until they are evicted.
+	 */
+	void cancel(final String key) {
+
+		final Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null || entry.read.isDone())
+				return;
+			entries.remove(key);
+		}
+		entry.read.cancel(true);
+	}
+
+	/**
+	 * Drop {@code key} and everything under it, e.g. because it was written.
+	 */
+	void invalidate(final String key) {
+
+		final String prefix = AmazonS3KeyValueAccess.addTrailingSlash(key);
+		final List<Entry> removed = new ArrayList<>();
+		synchronized (this) {
+			for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				final Entry entry = it.next();
+				final String entryKey = entry.read.getKey();
+				if (key.isEmpty() || entryKey.equals(key) || entryKey.startsWith(prefix)) {
+					it.remove();
+					bytes -= entry.size;
+					removed.add(entry);
+				}
+			}
+		}
+		removed.forEach(entry -> entry.read.cancel(true));
+	}
+
+	/**
+	 * Cancel all fetches and drop all fetched objects.
+	 */
+	void close() {
+
+		invalidate("");
+	}
+
+	private synchronized void completed(final S3ReadScheduler.ScheduledRead read) {
+
+		inFlight--;
+		final Entry entry = entries.get(read.getKey());
+		if (entry == null || entry.read != read || read.isCancelled())
+			return;
+
+		try {
+			entry.size = read.get().length;
+		} catch (final InterruptedException | ExecutionException e) {
+			/* let the regular read report the failure */
+			entries.remove(read.getKey());
+			return;
+		}
+
+		bytes += entry.size;
+		for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext() && bytes > maxBytes;) {
+			final Entry eldest = it.next();
+			if (eldest.read.isDone()) {
+				it.remove();
+				bytes -= eldest.size;
+			}
+		}
+	}
+}
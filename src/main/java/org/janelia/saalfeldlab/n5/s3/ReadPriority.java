@@ -0,0 +1,25 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+/**
+ * The priority of reads submitted with
+ * {@link AmazonS3KeyValueAccess#submitRead(String, ReadPriority)}. Queued
+ * reads of a higher priority are started before those of a lower priority,
+ * reads of the same priority in submission order.
+ */
+public enum ReadPriority {
+
+	/**
+	 * Reads that someone is waiting for, e.g. blocks in view.
+	 */
+	INTERACTIVE,
+
+	/**
+	 * Reads of data that is expected to be needed soon.
+	 */
+	PREFETCH,
+
+	/**
+	 * Reads that can wait, e.g. bulk processing or cache warming.
+	 */
+	BACKGROUND
+}
@@ -0,0 +1,121 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Caches parsed attributes together with the ETag of the object they were
+ * read from. An entry older than the TTL is revalidated with a conditional
+ * GET ({@code If-None-Match}), which returns no body if the object is
+ * unchanged.
+ * <p>
+ * Objects with pending writes in the {@link S3IoPolicy} are not cached.
+ */
+final class RevalidatingAttributesCache {
+
+	private static final class Entry {
+
+		/* null if the object did not exist */
+		final String eTag;
+		final JsonElement attributes;
+		volatile long validatedAt;
+
+		Entry(final String eTag, final JsonElement attributes, final long validatedAt) {
+
+			this.eTag = eTag;
+			this.attributes = attributes;
+			this.validatedAt = validatedAt;
+		}
+	}
+
+	private final AmazonS3KeyValueAccess kva;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * @param kva the key value access
+	 * @param ttlNanos the time after which entries are revalidated, 0 to revalidate on every access
+	 */
+	RevalidatingAttributesCache(final AmazonS3KeyValueAccess kva, final long ttlNanos) {
+
+		this.kva = kva;
+		this.ttlNanos = Math.max(0, ttlNanos);
+	}
+
+	/**
+	 * @param normalPath the path of the attributes object
+	 * @param gson parses the attributes
+	 * @return the attributes, or null if the object does not exist
+	 */
+	JsonElement get(final String normalPath, final Gson gson) throws N5Exception.N5IOException {
+
+		return get(normalPath, gson, false);
+	}
+
+	/**
+	 * @param normalPath the path of the attributes object
+	 * @param gson parses the attributes
+	 * @param revalidate revalidate the entry even if it is younger than the TTL
+	 * @return the attributes, or null if the object does not exist
+	 */
+	JsonElement get(final String normalPath, final Gson gson, final boolean revalidate) throws N5Exception.N5IOException {
+
+		final String key = AmazonS3KeyValueAccess.removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		final long now = System.nanoTime();
+		final Entry cached = entries.get(key);
+		if (cached != null && !revalidate && now - cached.validatedAt < ttlNanos)
+			return cached.attributes;
+
+		final GetObjectRequest.Builder request = GetObjectRequest.builder()
+				.bucket(kva.getBucketName())
+				.key(key);
+		if (cached != null && cached.eTag != null)
+			request.ifNoneMatch(cached.eTag);
+
+		final ResponseBytes<GetObjectResponse> response;
+		try {
+			response = kva.getS3().getObjectAsBytes(request.build());
+		} catch (final S3Exception e) {
+			if (e.statusCode() == 304 && cached != null) {
+				cached.validatedAt = now;
+				return cached.attributes;
+			}
+			/* without list permission, missing objects are reported as 403 */
+			if (e instanceof NoSuchKeyException || e.statusCode() == 404 || e.statusCode() == 403) {
+				entries.put(key, new Entry(null, null, now));
+				return null;
+			}
+			throw new N5Exception.N5IOException("Failed to read " + key, e);
+		}
+
+		final String json = new String(response.asByteArray(), StandardCharsets.UTF_8);
+		final JsonElement attributes = gson.fromJson(json, JsonElement.class);
+		entries.put(key, new Entry(response.response().eTag(), attributes, now));
+		return attributes;
+	}
+
+	/**
+	 * Returns true if {@code normalPath} can be served from this cache, i.e.
+	 * it has no pending writes that must be read from the {@link S3IoPolicy}.
+	 */
+	boolean serves(final String normalPath) {
+
+		final String key = AmazonS3KeyValueAccess.removeLeadingSlash(AmazonS3Utils.getS3Key(normalPath));
+		if (kva.getIoPolicy().isPending(key)) {
+			entries.remove(key);
+			return false;
+		}
+		return true;
+	}
+}
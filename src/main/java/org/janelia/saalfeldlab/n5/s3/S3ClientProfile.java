@@ -0,0 +1,124 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+
+/**
+ * HTTP client tuning presets for {@link AmazonS3Utils#createS3(String, S3ClientProfile, int, Consumer)}.
+ * <p>
+ * The SDK default connection pool holds 50 connections, so readers with a
+ * higher parallelism queue on the pool rather than on the network. Each
+ * profile sizes the pool from the requested parallelism and sets keep-alive,
+ * idle and timeout behavior suited for a particular access pattern.
+ * <p>
+ * The Apache HTTP client used by the synchronous {@link software.amazon.awssdk.services.s3.S3Client}
+ * does not expose socket buffer sizes, those remain at the operating system
+ * defaults.
+ */
+public enum S3ClientProfile {
+
+	/**
+	 * Large objects (e.g. shards, big chunks) read with many parallel
+	 * connections. Long socket timeouts, no overall call timeout.
+	 */
+	HIGH_THROUGHPUT(2.0, Duration.ofSeconds(5), Duration.ofSeconds(120), Duration.ofSeconds(60), null, null),
+
+	/**
+	 * Interactive access (e.g. viewers), fail fast and retry rather than
+	 * waiting on a slow connection.
+	 */
+	LOW_LATENCY(1.0, Duration.ofSeconds(2), Duration.ofSeconds(10), Duration.ofSeconds(5), Duration.ofSeconds(30), Duration.ofSeconds(5)),
+
+	/**
+	 * Many small objects (e.g. small chunks, attributes), keep a large pool
+	 * of warm connections and bound each request tightly.
+	 */
+	MANY_SMALL_OBJECTS(4.0, Duration.ofSeconds(2), Duration.ofSeconds(15), Duration.ofSeconds(30), Duration.ofSeconds(60), Duration.ofSeconds(10));
+
+	/**
+	 * The SDK default connection pool size.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+	private final double connectionsPerThread;
+	private final Duration connectionTimeout;
+	private final Duration socketTimeout;
+	private final Duration connectionAcquisitionTimeout;
+	private final Duration apiCallTimeout;
+	private final Duration apiCallAttemptTimeout;
+
+	S3ClientProfile(
+			final double connectionsPerThread,
+			final Duration connectionTimeout,
+			final Duration socketTimeout,
+			final Duration connectionAcquisitionTimeout,
+			final Duration apiCallTimeout,
+			final Duration apiCallAttemptTimeout) {
+
+		this.connectionsPerThread = connectionsPerThread;
+		this.connectionTimeout = connectionTimeout;
+		this.socketTimeout = socketTimeout;
+		this.connectionAcquisitionTimeout = connectionAcquisitionTimeout;
+		this.apiCallTimeout = apiCallTimeout;
+		this.apiCallAttemptTimeout = apiCallAttemptTimeout;
+	}
+
+	/**
+	 * The connection pool size for a given parallelism. Never smaller than
+	 * the SDK default.
+	 *
+	 * @param parallelism the number of threads expected to issue requests concurrently
+	 * @return the maximum number of pooled connections
+	 */
+	public int maxConnections(final int parallelism) {
+
+		return Math.max(DEFAULT_MAX_CONNECTIONS, (int)Math.ceil(connectionsPerThread * Math.max(1, parallelism)));
+	}
+
+	/**
+	 * Create an {@link ApacheHttpClient.Builder} configured for this profile.
+	 *
+	 * @param parallelism the number of threads expected to issue requests concurrently
+	 * @return the http client builder
+	 */
+	public ApacheHttpClient.Builder httpClientBuilder(final int parallelism) {
+
+		return ApacheHttpClient.builder()
+				.maxConnections(maxConnections(parallelism))
+				.connectionTimeout(connectionTimeout)
+				.socketTimeout(socketTimeout)
+				.connectionAcquisitionTimeout(connectionAcquisitionTimeout)
+				.connectionMaxIdleTime(Duration.ofSeconds(60))
+				.useIdleConnectionReaper(true)
+				.tcpKeepAlive(true)
+				.expectContinueEnabled(false);
+	}
+
+	/**
+	 * A configuration for {@link S3ClientBuilder} that applies this profile.
+	 * The timeouts are merged into the override configuration of the
+	 * builder, timeouts that are set already are kept.
+	 *
+	 * @param parallelism the number of threads expected to issue requests concurrently
+	 * @return the builder configuration
+	 */
+	public Consumer<S3ClientBuilder> configure(final int parallelism) {
+
+		return builder -> {
+			builder.httpClientBuilder(httpClientBuilder(parallelism));
+			final ClientOverrideConfiguration existing = builder.overrideConfiguration();
+			final ClientOverrideConfiguration.Builder overrides = existing == null
+					? ClientOverrideConfiguration.builder()
+					: existing.toBuilder();
+			if (apiCallTimeout != null && (existing == null || !existing.apiCallTimeout().isPresent()))
+				overrides.apiCallTimeout(apiCallTimeout);
+			if (apiCallAttemptTimeout != null && (existing == null || !existing.apiCallAttemptTimeout().isPresent()))
+				overrides.apiCallAttemptTimeout(apiCallAttemptTimeout);
+			builder.overrideConfiguration(overrides.build());
+		};
+	}
+}
@@ -0,0 +1,242 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the parallel S3 operations of this library.
+ * <p>
+ * All threads are daemon threads so that background work never keeps the
+ * JVM alive, and idle threads time out.
+ * <p>
+ * If the system property {@code n5.s3.virtualThreads} is {@code true} and
+ * the JVM supports virtual threads (Java 21+), bounded executors start a
+ * virtual thread per task and queue the tasks beyond the number of
+ * concurrently running tasks, so that tasks blocked in S3 requests do not
+ * hold platform threads. Otherwise, and on older JVMs, they use a pool of
+ * platform threads.
+ */
+final class S3Executors {
+
+	/**
+	 * The system property that enables virtual threads.
+	 */
+	static final String VIRTUAL_THREADS_PROPERTY = "n5.s3.virtualThreads";
+
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	/* Thread.ofVirtual() and the Thread.Builder methods, null before Java 21 */
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_FACTORY;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+		} catch (final ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_FACTORY = factory;
+	}
+
+	private S3Executors() {
+	}
+
+	/**
+	 * @return true if this JVM supports virtual threads
+	 */
+	static boolean virtualThreadsAvailable() {
+
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return true if bounded executors use virtual threads
+	 */
+	static boolean useVirtualThreads() {
+
+		return virtualThreadsAvailable() && Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+	}
+
+	/**
+	 * Create an executor that runs at most {@code parallelism} tasks
+	 * concurrently and queues the rest.
+	 *
+	 * @param name prefix for thread names
+	 * @param parallelism the maximum number of concurrently running tasks
+	 * @return the executor
+	 */
+	static ExecutorService newBoundedExecutor(final String name, final int parallelism) {
+
+		final int nThreads = Math.max(1, parallelism);
+		if (useVirtualThreads())
+			return new BoundedVirtualThreadExecutor(virtualThreadFactory(name), nThreads);
+
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				nThreads,
+				nThreads,
+				KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				daemonThreadFactory(name));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Create a single threaded executor for delayed tasks. Cancelled tasks
+	 * are removed from the queue immediately.
+	 *
+	 * @param name prefix for thread names
+	 * @return the executor
+	 */
+	static ScheduledExecutorService newScheduledExecutor(final String name) {
+
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory(name));
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	static ThreadFactory daemonThreadFactory(final String name) {
+
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static ThreadFactory virtualThreadFactory(final String name) {
+
+		try {
+			final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 1L);
+			return (ThreadFactory)BUILDER_FACTORY.invoke(builder);
+		} catch (final ReflectiveOperationException e) {
+			/* virtual threads are always daemon threads, this is the closest fallback */
+			return daemonThreadFactory(name);
+		}
+	}
+
+	/**
+	 * Starts a thread per task, of which at most {@code parallelism} run
+	 * concurrently. Further tasks wait in a queue, from which a finishing
+	 * task starts the next one.
+	 */
+	static final class BoundedVirtualThreadExecutor extends AbstractExecutorService {
+
+		private final ThreadFactory threadFactory;
+		private final int parallelism;
+
+		/* guarded by this */
+		private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+		private final Set<Thread> threads = new HashSet<>();
+		private boolean shutdown = false;
+
+		BoundedVirtualThreadExecutor(final ThreadFactory threadFactory, final int parallelism) {
+
+			this.threadFactory = threadFactory;
+			this.parallelism = parallelism;
+		}
+
+		@Override
+		public synchronized void execute(final Runnable command) {
+
+			if (shutdown)
+				throw new RejectedExecutionException("Executor is shut down");
+
+			if (threads.size() < parallelism)
+				start(command);
+			else
+				waiting.add(command);
+		}
+
+		/* requires the lock */
+		private void start(final Runnable command) {
+
+			final Thread thread = threadFactory.newThread(() -> run(command));
+			threads.add(thread);
+			thread.start();
+		}
+
+		private void run(final Runnable command) {
+
+			try {
+				command.run();
+			} finally {
+				synchronized (this) {
+					threads.remove(Thread.currentThread());
+					final Runnable next = waiting.poll();
+					if (next != null)
+						start(next);
+					else if (threads.isEmpty())
+						notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public synchronized void shutdown() {
+
+			shutdown = true;
+		}
+
+		@Override
+		public synchronized List<Runnable> shutdownNow() {
+
+			shutdown = true;
+			final List<Runnable> notStarted = new ArrayList<>(waiting);
+			waiting.clear();
+			for (final Thread thread : threads)
+				thread.interrupt();
+			return notStarted;
+		}
+
+		@Override
+		public synchronized boolean isShutdown() {
+
+			return shutdown;
+		}
+
+		@Override
+		public synchronized boolean isTerminated() {
+
+			return shutdown && threads.isEmpty();
+		}
+
+		@Override
+		public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!isTerminated()) {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return true;
+		}
+	}
+}
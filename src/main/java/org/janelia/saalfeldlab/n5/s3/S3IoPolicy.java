@@ -6,48 +6,479 @@ import org.janelia.saalfeldlab.n5.readdata.LazyRead;
 import org.janelia.saalfeldlab.n5.readdata.ReadData;
 import org.janelia.saalfeldlab.n5.readdata.VolatileReadData;
 import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 import static org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess.*;
+import static org.janelia.saalfeldlab.n5.s3.AmazonS3Utils.copyInto;
 
 public interface S3IoPolicy extends IoPolicy {
 
+    /**
+     * Whether a write of {@code key} has been accepted but not yet uploaded.
+     *
+     * @param key the key
+     * @return true if an upload of {@code key} is pending
+     */
+    default boolean isPending(String key) {
+        return false;
+    }
+
+    /**
+     * Write {@code readData} to {@code key} and fail if it was not stored.
+     * <p>
+     * {@link Unsafe#write(String, ReadData)} and {@link EtagMatch} only log
+     * failed uploads, callers that must learn about failures, such as
+     * {@link WriteBehindIoPolicy}, use this method. The default
+     * implementation calls {@link #write(String, ReadData)}.
+     *
+     * @param key the key
+     * @param readData the data
+     * @throws IOException if the data were not stored
+     */
+    default void writeChecked(String key, ReadData readData) throws IOException {
+        write(key, readData);
+    }
+
+    /**
+     * Read {@code length} bytes of the object at {@code key} starting at
+     * {@code offset}, or all bytes from {@code offset} if {@code length} is
+     * not positive, into {@code destination} at its position.
+     * <p>
+     * The default implementation copies from {@link #read(String)}.
+     *
+     * @param key the key
+     * @param offset the offset in the object
+     * @param length the number of bytes
+     * @param destination a heap or direct buffer
+     * @return the number of bytes read
+     * @throws IOException if the read failed or the bytes do not fit into {@code destination}
+     */
+    default int readInto(String key, long offset, long length, ByteBuffer destination) throws IOException {
+        final VolatileReadData readData = read(key);
+        try {
+            return copyInto(readData.allBytes(), offset, length, destination);
+        } finally {
+            try {
+                readData.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    /**
+     * Complete all pending writes.
+     *
+     * @throws IOException if a pending write failed
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Complete all pending writes and release resources held by this policy.
+     *
+     * @throws IOException if a pending write failed
+     */
+    default void close() throws IOException {
+        flush();
+    }
+
     class Unsafe implements S3IoPolicy {
 
         protected final S3Client s3;
         protected final String bucketName;
 
+        /**
+         * The default part size of uploads of data with unknown length.
+         */
+        public static final int DEFAULT_UPLOAD_PART_SIZE = 8 << 20;
+
+        /**
+         * The maximum size of an object uploaded with one {@code PUT}.
+         */
+        public static final long MAX_PUT_OBJECT_SIZE = 5L << 30;
+
+        /**
+         * The minimum part size of multipart uploads.
+         */
+        public static final int MIN_UPLOAD_PART_SIZE = 5 << 20;
+
+        /**
+         * The number of concurrent {@code DeleteObjects} requests of a
+         * recursive {@link #delete(String)}.
+         */
+        public static final int DELETE_PARALLELISM = 8;
+
+        private static final String OCTET_STREAM = "application/octet-stream";
+
+        /* the initial buffer size of uploads of data with unknown length */
+        private static final int INITIAL_UPLOAD_BUFFER_SIZE = 64 << 10;
+
+        private boolean skipUnchanged = false;
+        private int tailPrefetch = 0;
+        private long streamingThreshold = -1;
+        private int uploadPartSize = DEFAULT_UPLOAD_PART_SIZE;
+        private final LongAdder skippedWrites = new LongAdder();
+        private final LongAdder skippedBytes = new LongAdder();
+
         public Unsafe(S3Client s3, String bucketName) {
             this.s3 = s3;
             this.bucketName = bucketName;
         }
 
+        /**
+         * Skip writes of data that are identical to the stored object.
+         * <p>
+         * If enabled, {@link #write(String, ReadData)} materializes the data,
+         * computes its MD5 digest and compares it with the ETag of the stored
+         * object (one {@code HEAD} request). {@link ConditionalWrite} compares
+         * with the ETag it expects instead, if it has one. The upload is
+         * skipped if they match. ETags of multipart uploads and of objects with SSE-KMS or
+         * SSE-C encryption are not MD5 digests, such objects are always
+         * uploaded.
+         *
+         * @param skipUnchanged whether to skip writes of unchanged data
+         */
+        public void setSkipUnchanged(boolean skipUnchanged) {
+            this.skipUnchanged = skipUnchanged;
+        }
+
+        /**
+         * Learn the size of objects from a suffix-range {@code GET} of their
+         * last {@code tailPrefetch} bytes instead of a {@code HEAD} request.
+         * <p>
+         * Readers of sharded datasets ask for the object size and then read
+         * the shard index at the end of the object. With a tail prefetch that
+         * covers the index, both are answered by one request, and reads of
+         * data within the prefetched tail are served without further
+         * requests.
+         *
+         * @param tailPrefetch the number of bytes to prefetch, 0 to disable
+         */
+        public void setTailPrefetch(int tailPrefetch) {
+            this.tailPrefetch = Math.max(0, tailPrefetch);
+        }
+
+        public int getTailPrefetch() {
+            return tailPrefetch;
+        }
+
+        /**
+         * Return reads of at least {@code streamingThreshold} bytes, and
+         * reads to the end of an object, as {@link ReadData} over the
+         * response stream instead of a buffered copy, so that sequential consumers such as decompressors read
+         * directly from the connection. The data are materialized only if
+         * random access is requested. The connection is held until the
+         * stream has been consumed.
+         *
+         * @param streamingThreshold the minimum size of streamed reads, negative to disable streaming
+         */
+        public void setStreamingThreshold(long streamingThreshold) {
+            this.streamingThreshold = streamingThreshold;
+        }
+
+        public long getStreamingThreshold() {
+            return streamingThreshold;
+        }
+
+        /**
+         * Set the part size of uploads of data with unknown length, see
+         * {@link #upload(String, ReadData, String, String)}. This bounds the
+         * memory held per write.
+         *
+         * @param uploadPartSize the part size, at least {@link #MIN_UPLOAD_PART_SIZE}
+         */
+        public void setUploadPartSize(int uploadPartSize) {
+            this.uploadPartSize = Math.max(MIN_UPLOAD_PART_SIZE, uploadPartSize);
+        }
+
+        public int getUploadPartSize() {
+            return uploadPartSize;
+        }
+
+        protected S3LazyRead lazyRead(String key, boolean verifyEtag) {
+            return new S3LazyRead(s3, bucketName, key, verifyEtag)
+                    .prefetchTail(tailPrefetch)
+                    .streamAbove(streamingThreshold);
+        }
+
+        /**
+         * @return the number of writes skipped because the stored object was unchanged
+         */
+        public long getSkippedWrites() {
+            return skippedWrites.sum();
+        }
+
+        /**
+         * @return the number of bytes not uploaded because the stored object was unchanged
+         */
+        public long getSkippedBytes() {
+            return skippedBytes.sum();
+        }
+
+        /**
+         * Write {@code readData} to {@code key}. Failed requests and data
+         * that could not be read are reported on {@code System.err}, use
+         * {@link #writeChecked(String, ReadData)} to handle them.
+         */
         @Override
         public void write(String key, ReadData readData) {
 
-            final PutObjectRequest putRequest = PutObjectRequest.builder()
+            try {
+                writeChecked(key, readData);
+            } catch (S3Exception | N5Exception.N5IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Write {@code readData} to {@code key}, skipping unchanged data if
+         * enabled, and propagate failures.
+         *
+         * @throws S3Exception if a request failed
+         * @throws N5Exception.N5IOException if {@code readData} could not be read
+         */
+        @Override
+        public void writeChecked(String key, ReadData readData) {
+
+            final ReadData data = unlessUnchanged(key, readData, null);
+            if (data != null)
+                upload(key, data, null, null);
+        }
+
+        /**
+         * If unchanged writes are skipped, materialize {@code readData} and
+         * compare it with {@code eTag}, or with the ETag of the stored object
+         * (one {@code HEAD} request) if {@code eTag} is null.
+         *
+         * @param key the key
+         * @param readData the data to write
+         * @param eTag the known ETag of the stored object, or null
+         * @return the data to upload, or null if the write is skipped
+         */
+        protected ReadData unlessUnchanged(String key, ReadData readData, String eTag) {
+
+            if (!skipUnchanged)
+                return readData;
+
+            final byte[] bytes = readData.allBytes();
+            if (eTag == null ? isUnchanged(key, bytes) : matchesEtag(eTag, bytes)) {
+                skippedWrites.increment();
+                skippedBytes.add(bytes.length);
+                return null;
+            }
+            return ReadData.from(bytes);
+        }
+
+        /**
+         * Upload {@code data}. Data of known length up to
+         * {@link #MAX_PUT_OBJECT_SIZE} are streamed with one {@code PUT}, so
+         * that encoding and upload overlap and no copy is held in memory. A
+         * retry of the client reads {@code data} again from
+         * {@link ReadData#inputStream()}, so data backed by a stream that can
+         * be read only once should be materialized before they are written.
+         * <p>
+         * Data of unknown length are buffered one part of at most
+         * {@link #getUploadPartSize()} bytes at a time. Data that fit into
+         * one part are sent with one {@code PUT}, larger data are sent with a
+         * multipart upload, as are data larger than a single {@code PUT}
+         * allows. The part buffer grows as data are read, so that small
+         * writes of unknown length do not allocate a whole part, and can be
+         * resent by the client.
+         *
+         * @param key the key
+         * @param data the data
+         * @param ifMatch the ETag that the stored object must have, or null
+         * @param ifNoneMatch {@code "*"} if the object must not exist, or null
+         * @throws S3Exception if a request failed, incomplete multipart uploads are aborted
+         * @throws N5Exception.N5IOException if {@code data} could not be read
+         */
+        protected void upload(String key, ReadData data, String ifMatch, String ifNoneMatch) {
+
+            final PutObjectRequest request = PutObjectRequest.builder()
                     .bucket(bucketName)
                     .key(key)
+                    .ifMatch(ifMatch)
+                    .ifNoneMatch(ifNoneMatch)
                     .build();
 
+            final long length = data.length();
+            if (length >= 0 && length <= MAX_PUT_OBJECT_SIZE) {
+                s3.putObject(request, RequestBody.fromContentProvider(data::inputStream, length, OCTET_STREAM));
+                return;
+            }
+
+            final PartBuffer part = new PartBuffer(Math.min(INITIAL_UPLOAD_BUFFER_SIZE, uploadPartSize));
+            final InputStream in = data.inputStream();
             try {
-                s3.putObject(putRequest, RequestBody.fromByteBuffer(readData.toByteBuffer()));
-            } catch (S3Exception e) {
-                e.printStackTrace();
+                part.fill(in, uploadPartSize);
+                if (part.size() < uploadPartSize) {
+                    s3.putObject(request, part.requestBody());
+                    return;
+                }
+                multipartUpload(key, in, part, ifMatch, ifNoneMatch);
+            } catch (IOException e) {
+                throw new N5Exception.N5IOException("Failed to read data for " + key, e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        /**
+         * Upload a full first {@code part} and the rest of {@code in} as a
+         * multipart upload, reusing the buffer of {@code part}.
+         */
+        private void multipartUpload(String key, InputStream in, PartBuffer part, String ifMatch, String ifNoneMatch) throws IOException {
+
+            final String uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build()).uploadId();
+
+            try {
+                final List<CompletedPart> parts = new ArrayList<>();
+                while (part.size() > 0) {
+                    final int partNumber = parts.size() + 1;
+                    final String eTag = s3.uploadPart(UploadPartRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(key)
+                                    .uploadId(uploadId)
+                                    .partNumber(partNumber)
+                                    .contentLength((long)part.size())
+                                    .build(),
+                            part.requestBody()).eTag();
+                    parts.add(CompletedPart.builder().partNumber(partNumber).eTag(eTag).build());
+                    part.reset();
+                    part.fill(in, uploadPartSize);
+                }
+
+                s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                        .ifMatch(ifMatch)
+                        .ifNoneMatch(ifNoneMatch)
+                        .build());
+            } catch (IOException | RuntimeException e) {
+                try {
+                    s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .build());
+                } catch (Exception ignore) {
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * The buffer of one part of an upload, which grows as it is filled
+         * and keeps its capacity when it is reset.
+         */
+        static final class PartBuffer extends ByteArrayOutputStream {
+
+            PartBuffer(final int initialCapacity) {
+                super(Math.max(1, initialCapacity));
+            }
+
+            /**
+             * Read from {@code in} until the buffer holds {@code maxSize}
+             * bytes or {@code in} ends.
+             */
+            void fill(final InputStream in, final int maxSize) throws IOException {
+
+                for (int r = 0; count < maxSize && r >= 0;) {
+                    if (count == buf.length)
+                        buf = Arrays.copyOf(buf, (int)Math.min(maxSize, 2L * buf.length));
+                    r = in.read(buf, count, Math.min(buf.length, maxSize) - count);
+                    if (r > 0)
+                        count += r;
+                }
+            }
+
+            int capacity() {
+                return buf.length;
+            }
+
+            /**
+             * @return a body over the buffered bytes that can be sent repeatedly
+             */
+            RequestBody requestBody() {
+
+                final byte[] bytes = buf;
+                final int length = count;
+                return RequestBody.fromContentProvider(() -> new ByteArrayInputStream(bytes, 0, length), length, OCTET_STREAM);
+            }
+        }
+
+        protected boolean isUnchanged(String key, byte[] data) {
+
+            final String eTag;
+            try {
+                eTag = headObjectRequest(s3, bucketName, key, null).eTag();
+            } catch (N5Exception.N5NoSuchKeyException e) {
+                return false;
             }
+
+            return matchesEtag(eTag, data);
+        }
+
+        private static boolean matchesEtag(String eTag, byte[] data) {
+
+            /* multipart ETags are of the form "<digest>-<number of parts>" */
+            if (eTag == null || eTag.contains("-"))
+                return false;
+
+            return eTag.replace("\"", "").equalsIgnoreCase(AmazonS3Utils.md5Hex(data));
         }
 
         @Override
         public VolatileReadData read(String key) {
-            return VolatileReadData.from(new S3LazyRead(s3, bucketName, key, false));
+            return VolatileReadData.from(lazyRead(key, false));
+        }
+
+        @Override
+        public int readInto(String key, long offset, long length, ByteBuffer destination) {
+            return lazyRead(key, false).readInto(offset, length, destination);
         }
 
+        /**
+         * Delete the object at {@code key} and all objects under it. The
+         * objects under it are deleted in batches of up to 1000 keys, with up
+         * to {@link #DELETE_PARALLELISM} concurrent requests.
+         */
         @Override
         public void delete(String key) {
             if (!key.endsWith("/")) {
@@ -64,32 +495,42 @@ public interface S3IoPolicy extends IoPolicy {
             }
 
             final String prefix = addTrailingSlash(key);
-
-            ListObjectsV2Request listObjectsRequest;
-            ListObjectsV2Response objectsListing;
-            listObjectsRequest = ListObjectsV2Request.builder()
+            final ListObjectsV2Request listObjectsRequest = ListObjectsV2Request.builder()
                     .bucket(bucketName)
                     .prefix(prefix)
                     .build();
 
-            do {
-                objectsListing = s3.listObjectsV2(listObjectsRequest);
-                final List<ObjectIdentifier> objectsToDelete = objectsListing.contents().stream().map(x -> {
-                    return ObjectIdentifier.builder().key(x.key()).build();
-                }).collect(Collectors.toList());
+            /* delete each listed page of up to 1000 keys while listing the next */
+            final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-delete", DELETE_PARALLELISM);
+            final List<Future<?>> deletes = new ArrayList<>();
+            try {
+                for (final ListObjectsV2Response page : s3.listObjectsV2Paginator(listObjectsRequest)) {
+                    final List<ObjectIdentifier> objectsToDelete = page.contents().stream()
+                            .map(x -> ObjectIdentifier.builder().key(x.key()).build())
+                            .collect(Collectors.toList());
 
-                if (!objectsToDelete.isEmpty()) {
-                    final DeleteObjectsRequest deleteRequest = DeleteObjectsRequest.builder()
-                            .bucket(bucketName)
-                            .delete(Delete.builder().objects(objectsToDelete).build())
-                            .build();
+                    if (!objectsToDelete.isEmpty()) {
+                        final DeleteObjectsRequest deleteRequest = DeleteObjectsRequest.builder()
+                                .bucket(bucketName)
+                                .delete(Delete.builder().objects(objectsToDelete).build())
+                                .build();
 
-                    s3.deleteObjects(deleteRequest);
+                        deletes.add(executor.submit(() -> s3.deleteObjects(deleteRequest)));
+                    }
                 }
 
-                // TODO what about continuation token?
-
-            } while (objectsListing.isTruncated());
+                for (final Future<?> delete : deletes)
+                    delete.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new N5Exception.N5IOException("Interrupted while deleting " + prefix, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new N5Exception.N5IOException("Failed to delete " + prefix, e.getCause());
+            } finally {
+                executor.shutdown();
+            }
         }
     }
 
@@ -101,7 +542,185 @@ public interface S3IoPolicy extends IoPolicy {
 
         @Override
         public VolatileReadData read(String key) {
-            return VolatileReadData.from(new S3LazyRead(s3, bucketName, key, true));
+            return VolatileReadData.from(lazyRead(key, true));
+        }
+    }
+
+    /**
+     * An {@link EtagMatch} policy with conditional writes for optimistic
+     * concurrency between independent writers.
+     * <p>
+     * {@link #update(String, UnaryOperator)} is a read-modify-write loop that
+     * writes with {@code If-Match} on the ETag it read, or with
+     * {@code If-None-Match: *} if the object did not exist, and retries on
+     * conflicts.
+     * <p>
+     * For read-modify-write sequences through other code, e.g. an
+     * {@link AmazonS3KeyValueAccess}, {@link #runConditionally(Runnable)}
+     * remembers the ETags observed by reads of the current thread while it
+     * runs, and sends the next write of each read key conditionally. The
+     * write fails with a {@link N5Exception.N5ConcurrentModificationException}
+     * if the object was changed in the meantime. Outside of these scopes,
+     * reads observe nothing and writes are unconditional.
+     */
+    class ConditionalWrite extends EtagMatch {
+
+        /* marks keys that were observed not to exist */
+        private static final String ABSENT = "";
+
+        /* the ETags observed by reads of the current thread in runConditionally, null outside */
+        private final ThreadLocal<HashMap<String, String>> observedEtags = new ThreadLocal<>();
+        private final int maxRetries;
+
+        public ConditionalWrite(S3Client s3, String bucketName) {
+            this(s3, bucketName, 8);
+        }
+
+        /**
+         * @param s3 the s3 client
+         * @param bucketName the bucket name
+         * @param maxRetries the number of retries of {@link #update(String, UnaryOperator)} after a conflict
+         */
+        public ConditionalWrite(S3Client s3, String bucketName, int maxRetries) {
+            super(s3, bucketName);
+            this.maxRetries = maxRetries;
+        }
+
+        /**
+         * Run {@code readModifyWrite} on the current thread such that writes
+         * of keys it read before are conditional on the observed ETags. The
+         * observed ETags are dropped when it returns. Nested calls share the
+         * ETags of the outermost call.
+         *
+         * @param readModifyWrite reads and writes through this policy
+         * @throws N5Exception.N5ConcurrentModificationException if a read object was changed before it was written
+         */
+        public void runConditionally(Runnable readModifyWrite) throws N5Exception.N5ConcurrentModificationException {
+
+            if (observedEtags.get() != null) {
+                readModifyWrite.run();
+                return;
+            }
+
+            observedEtags.set(new HashMap<>());
+            try {
+                readModifyWrite.run();
+            } finally {
+                observedEtags.remove();
+            }
+        }
+
+        @Override
+        public VolatileReadData read(String key) {
+
+            final HashMap<String, String> observed = observedEtags.get();
+            if (observed == null)
+                return super.read(key);
+
+            return VolatileReadData.from(lazyRead(key, true)
+                    .observeEtag(eTag -> observed.put(key, eTag == null ? ABSENT : eTag)));
+        }
+
+        @Override
+        public void write(String key, ReadData readData) {
+
+            final HashMap<String, String> observed = observedEtags.get();
+            write(key, readData, observed == null ? null : observed.remove(key));
+        }
+
+        /**
+         * @param expected the expected ETag, {@code ABSENT}, or null for an unconditional write
+         */
+        private void write(String key, ReadData readData, String expected) {
+
+            final String ifNoneMatch = ABSENT.equals(expected) ? "*" : null;
+            final String ifMatch = ABSENT.equals(expected) ? null : expected;
+
+            /* an absent object is never unchanged, no need to ask */
+            final ReadData data = ABSENT.equals(expected) ? readData : unlessUnchanged(key, readData, expected);
+            if (data == null)
+                return;
+
+            rethrowS3Exceptions(() -> {
+                try {
+                    upload(key, data, ifMatch, ifNoneMatch);
+                    return null;
+                } catch (S3Exception e) {
+                    /* a concurrent conditional write to the same key is in progress */
+                    if (e.statusCode() == 409)
+                        throw new N5Exception.N5ConcurrentModificationException("Conflicting conditional write of " + key, e);
+                    /* the object was deleted since it was read */
+                    if (e.statusCode() == 404 && ifMatch != null && !isNoSuchBucket(e))
+                        throw new N5Exception.N5ConcurrentModificationException("Object " + key + " was deleted before the conditional write", e);
+                    throw e;
+                }
+            });
+        }
+
+        private static boolean isNoSuchBucket(S3Exception e) {
+
+            return e instanceof NoSuchBucketException
+                    || (e.awsErrorDetails() != null && "NoSuchBucket".equals(e.awsErrorDetails().errorCode()));
+        }
+
+        @Override
+        public void writeChecked(String key, ReadData readData) {
+            write(key, readData);
+        }
+
+        /**
+         * Read the object at {@code key}, modify it, and write it back if it
+         * was not changed or deleted by someone else in the meantime. Repeats
+         * after conflicts, with randomized exponential backoff, up to the
+         * configured number of retries. A retry after a deletion writes with
+         * {@code If-None-Match: *}.
+         *
+         * @param key the key
+         * @param modify maps the current data, or {@code null} if the object does not exist, to the new data
+         * @throws N5Exception.N5ConcurrentModificationException if the object was modified concurrently in every attempt
+         */
+        public void update(String key, UnaryOperator<ReadData> modify) throws N5Exception.N5ConcurrentModificationException {
+
+            for (int attempt = 0;; attempt++) {
+                try {
+                    ReadData current;
+                    final String[] observed = {null};
+                    final VolatileReadData readData = VolatileReadData.from(lazyRead(key, true)
+                            .observeEtag(eTag -> observed[0] = eTag == null ? ABSENT : eTag));
+                    try {
+                        current = ReadData.from(readData.allBytes());
+                    } catch (N5Exception.N5NoSuchKeyException e) {
+                        current = null;
+                    } finally {
+                        closeQuietly(readData);
+                    }
+                    write(key, modify.apply(current), observed[0]);
+                    return;
+                } catch (N5Exception.N5ConcurrentModificationException e) {
+                    if (attempt >= maxRetries)
+                        throw e;
+                    backoff(attempt);
+                }
+            }
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+
+            try {
+                closeable.close();
+            } catch (Exception ignore) {
+            }
+        }
+
+        private static void backoff(int attempt) {
+
+            final long maxDelay = 10L << Math.min(attempt, 10);
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new N5Exception("Interrupted while retrying conditional write", e);
+            }
         }
     }
 
@@ -112,7 +731,15 @@ public interface S3IoPolicy extends IoPolicy {
         private final S3Client s3;
         private final String bucketName;
         private String eTag = null;
+        private Consumer<String> eTagObserver = null;
 
+        private int tailPrefetch = 0;
+        private long streamingThreshold = -1;
+        /* the last bytes of the object and its size, if prefetched */
+        private byte[] tail = null;
+        private long size = -1;
+        /* response streams returned by materialize that were not read to the end or closed */
+        private final Set<TrackedStream> openStreams = ConcurrentHashMap.newKeySet();
 
         S3LazyRead(final S3Client s3, final String bucketName, final String s3Key, final boolean verifyEtag) {
             this.s3 = s3;
@@ -121,6 +748,52 @@ public interface S3IoPolicy extends IoPolicy {
             this.verifyEtag = verifyEtag;
         }
 
+        /**
+         * Report the ETag of the object when it is first learned, or
+         * {@code null} if the object does not exist.
+         */
+        S3LazyRead observeEtag(final Consumer<String> eTagObserver) {
+            this.eTagObserver = eTagObserver;
+            return this;
+        }
+
+        /**
+         * Answer {@link #size()} with a suffix-range request for the last
+         * {@code tailPrefetch} bytes, and serve reads within them.
+         */
+        S3LazyRead prefetchTail(final int tailPrefetch) {
+            this.tailPrefetch = tailPrefetch;
+            return this;
+        }
+
+        /**
+         * Return reads of at least {@code streamingThreshold} bytes as
+         * {@link ReadData} over the response stream. Reads to the end of the
+         * object are streamed if the response is at least
+         * {@code streamingThreshold} bytes long or of unknown length.
+         * Streams that are still open are aborted by {@link #close()}.
+         */
+        S3LazyRead streamAbove(final long streamingThreshold) {
+            this.streamingThreshold = streamingThreshold;
+            return this;
+        }
+
+        private void setEtag(final String eTag) {
+            this.eTag = eTag;
+            if (eTagObserver != null)
+                eTagObserver.accept(eTag);
+        }
+
+        private <T> T observeMissing(final Supplier<T> request) {
+            try {
+                return request.get();
+            } catch (N5Exception.N5NoSuchKeyException e) {
+                if (eTagObserver != null && eTag == null)
+                    eTagObserver.accept(null);
+                throw e;
+            }
+        }
+
         private GetObjectRequest createObjectRequest(final String s3Key, long offset, long length) {
 
 
@@ -146,29 +819,254 @@ public interface S3IoPolicy extends IoPolicy {
 
         @Override public ReadData materialize(long offset, long length) throws N5Exception.N5IOException {
 
-            final ResponseBytes<GetObjectResponse> response = rethrowS3Exceptions(() -> {
+            if (tail != null) {
+                final long tailOffset = size - tail.length;
+                final long end = length > 0 ? offset + length : size;
+                if (offset >= tailOffset && end <= size)
+                    return ReadData.from(Arrays.copyOfRange(tail, (int)(offset - tailOffset), (int)(end - tailOffset)));
+            }
+
+            if (streamingThreshold >= 0 && (length <= 0 || length >= streamingThreshold))
+                return stream(offset, length, streamingThreshold);
+
+            final ResponseBytes<GetObjectResponse> response = observeMissing(() -> rethrowS3Exceptions(() -> {
                 final GetObjectRequest request = createObjectRequest(s3Key, offset, length);
                 ResponseBytes<GetObjectResponse> responseBytes = s3.getObject(request, ResponseTransformer.toBytes());
                 if (verifyEtag && eTag == null)
-                    eTag = responseBytes.response().eTag();
+                    setEtag(responseBytes.response().eTag());
                 return responseBytes;
-            });
+            }));
             return ReadData.from(response.asByteArray());
         }
 
+        /**
+         * Stream the response, or buffer it if it is shorter than
+         * {@code threshold}, which is known only once the response arrived
+         * for reads to the end of the object.
+         */
+        private ReadData stream(final long offset, final long length, final long threshold) {
+
+            final ResponseInputStream<GetObjectResponse> stream = observeMissing(() -> rethrowS3Exceptions(() -> {
+                final ResponseInputStream<GetObjectResponse> responseStream = s3.getObject(createObjectRequest(s3Key, offset, length));
+                if (verifyEtag && eTag == null)
+                    setEtag(responseStream.response().eTag());
+                return responseStream;
+            }));
+
+            final Long contentLength = stream.response().contentLength();
+            if (contentLength != null && contentLength < threshold)
+                return ReadData.from(readFully(stream, contentLength.intValue()));
+
+            final TrackedStream tracked = new TrackedStream(stream);
+            openStreams.add(tracked);
+            if (contentLength == null || contentLength > Integer.MAX_VALUE)
+                return ReadData.from(tracked);
+            return ReadData.from(tracked, contentLength.intValue());
+        }
+
+        private byte[] readFully(final ResponseInputStream<GetObjectResponse> stream, final int length) {
+
+            final byte[] bytes = new byte[length];
+            try {
+                for (int n = 0, r; n < length; n += r) {
+                    r = stream.read(bytes, n, length - n);
+                    if (r < 0)
+                        throw new N5Exception.N5IOException("Response of " + s3Key + " ended after " + n + " of " + length + " bytes");
+                }
+                return bytes;
+            } catch (IOException e) {
+                stream.abort();
+                throw new N5Exception.N5IOException("Failed to read " + s3Key, e);
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        /**
+         * @return the number of streams returned by {@link #materialize(long, long)}
+         *         that were neither read to the end nor closed
+         */
+        int openStreams() {
+            return openStreams.size();
+        }
+
+        /**
+         * A response stream that stops being tracked once it is read to the
+         * end or closed.
+         */
+        private final class TrackedStream extends FilterInputStream {
+
+            TrackedStream(final ResponseInputStream<GetObjectResponse> stream) {
+                super(stream);
+            }
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b < 0)
+                    close();
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n < 0)
+                    close();
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (openStreams.remove(this))
+                    super.close();
+            }
+
+            void abort() {
+                if (openStreams.remove(this))
+                    ((ResponseInputStream<?>)in).abort();
+            }
+        }
+
+        /**
+         * Read {@code length} bytes starting at {@code offset}, or all bytes
+         * from {@code offset} if {@code length} is not positive, into
+         * {@code destination} at its position. The response is copied from
+         * the connection into {@code destination} without intermediate
+         * arrays.
+         *
+         * @return the number of bytes read
+         * @throws N5Exception.N5IOException if the bytes do not fit into the remaining space of {@code destination}
+         */
+        int readInto(final long offset, final long length, final ByteBuffer destination) throws N5Exception.N5IOException {
+
+            if (tail != null) {
+                final long tailOffset = size - tail.length;
+                final long end = length > 0 ? offset + length : size;
+                if (offset >= tailOffset && end <= size)
+                    return copyInto(tail, offset - tailOffset, end - offset, destination);
+            }
+
+            if (length > destination.remaining())
+                throw new N5Exception.N5IOException("Read of " + length + " bytes does not fit into " + destination.remaining() + " remaining bytes");
+
+            final ResponseInputStream<GetObjectResponse> stream = observeMissing(() -> rethrowS3Exceptions(() -> {
+                final ResponseInputStream<GetObjectResponse> responseStream = s3.getObject(createObjectRequest(s3Key, offset, length));
+                if (verifyEtag && eTag == null)
+                    setEtag(responseStream.response().eTag());
+                return responseStream;
+            }));
+
+            try {
+                final Long contentLength = stream.response().contentLength();
+                if (contentLength != null && contentLength > destination.remaining()) {
+                    stream.abort();
+                    throw new N5Exception.N5IOException("Read of " + contentLength + " bytes does not fit into " + destination.remaining() + " remaining bytes");
+                }
+
+                int n = 0;
+                if (destination.hasArray()) {
+                    final byte[] array = destination.array();
+                    for (int r; destination.hasRemaining() && (r = stream.read(array, destination.arrayOffset() + destination.position(), destination.remaining())) >= 0; n += r)
+                        destination.position(destination.position() + r);
+                } else {
+                    final ReadableByteChannel channel = Channels.newChannel(stream);
+                    for (int r; destination.hasRemaining() && (r = channel.read(destination)) >= 0;)
+                        n += r;
+                }
+
+                if (stream.read() >= 0) {
+                    stream.abort();
+                    throw new N5Exception.N5IOException("Read of " + s3Key + " does not fit into the destination");
+                }
+                return n;
+            } catch (IOException e) {
+                stream.abort();
+                throw new N5Exception.N5IOException("Failed to read " + s3Key, e);
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
         @Override public long size() throws N5Exception.N5IOException {
 
-            final HeadObjectResponse response = headObjectRequest(s3, bucketName, s3Key, eTag);
+            if (size >= 0)
+                return size;
+
+            if (tailPrefetch > 0 && readTail())
+                return size;
+
+            final HeadObjectResponse response = observeMissing(() -> headObjectRequest(s3, bucketName, s3Key, eTag));
 
             if (verifyEtag && eTag == null)
-                eTag = response.eTag();
+                setEtag(response.eTag());
 
             return response.contentLength();
         }
 
+        /**
+         * Read the last {@code tailPrefetch} bytes and learn the object size
+         * from the {@code Content-Range} of the response.
+         *
+         * @return false if the object is empty, where suffix ranges are not satisfiable
+         */
+        private boolean readTail() {
+
+            final GetObjectRequest.Builder requestBuilder = GetObjectRequest.builder()
+                    .key(s3Key)
+                    .bucket(bucketName)
+                    .range("bytes=-" + tailPrefetch);
+            if (verifyEtag && eTag != null)
+                requestBuilder.ifMatch(eTag);
+
+            final ResponseBytes<GetObjectResponse> response = observeMissing(() -> rethrowS3Exceptions(() -> {
+                try {
+                    return s3.getObject(requestBuilder.build(), ResponseTransformer.toBytes());
+                } catch (S3Exception e) {
+                    if (e.statusCode() == 416)
+                        return null;
+                    throw e;
+                }
+            }));
+            if (response == null)
+                return false;
+
+            if (verifyEtag && eTag == null)
+                setEtag(response.response().eTag());
+
+            tail = response.asByteArray();
+            size = totalSize(response.response().contentRange(), tail.length);
+            return true;
+        }
+
+        /**
+         * The total size from a {@code Content-Range} header
+         * ({@code bytes start-end/total}), or {@code length} if the whole
+         * object was returned without one.
+         */
+        static long totalSize(final String contentRange, final long length) {
+
+            if (contentRange == null)
+                return length;
+
+            final String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+            return total.equals("*") ? length : Long.parseLong(total);
+        }
+
         @Override
         public void close() {
+            /* release the connections of streams that were not consumed */
+            for (final TrackedStream stream : new ArrayList<>(openStreams))
+                stream.abort();
             eTag = null;
+            tail = null;
+            size = -1;
         }
     }
 }
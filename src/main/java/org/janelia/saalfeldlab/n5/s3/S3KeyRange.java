@@ -0,0 +1,206 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * A contiguous range of keys under a prefix, {@code startAfter < key <= endInclusive}
+ * in S3 listing order. Ranges are serializable so that they can be sent to
+ * distributed workers, each of which lists its own range independently.
+ * <p>
+ * Ordering of keys follows {@link String#compareTo(String)}, which equals the
+ * S3 listing order for keys without supplementary unicode characters.
+ */
+public class S3KeyRange implements Serializable {
+
+	private static final long serialVersionUID = 2815238468349502376L;
+
+	private final String bucketName;
+	private final String prefix;
+	private final String startAfter;
+	private final String endInclusive;
+
+	/**
+	 * @param bucketName the bucket
+	 * @param prefix the key prefix
+	 * @param startAfter the exclusive lower bound, or null for the first key under {@code prefix}
+	 * @param endInclusive the inclusive upper bound, or null for the last key under {@code prefix}
+	 */
+	public S3KeyRange(final String bucketName, final String prefix, @Nullable final String startAfter, @Nullable final String endInclusive) {
+
+		this.bucketName = bucketName;
+		this.prefix = prefix;
+		this.startAfter = startAfter;
+		this.endInclusive = endInclusive;
+	}
+
+	public String getBucketName() {
+
+		return bucketName;
+	}
+
+	public String getPrefix() {
+
+		return prefix;
+	}
+
+	@Nullable
+	public String getStartAfter() {
+
+		return startAfter;
+	}
+
+	@Nullable
+	public String getEndInclusive() {
+
+		return endInclusive;
+	}
+
+	public boolean contains(final String key) {
+
+		return key.startsWith(prefix)
+				&& (startAfter == null || key.compareTo(startAfter) > 0)
+				&& (endInclusive == null || key.compareTo(endInclusive) <= 0);
+	}
+
+	/**
+	 * List all objects in this range.
+	 *
+	 * @param s3 the s3 client
+	 * @param consumer receives the objects in listing order
+	 */
+	public void forEach(final S3Client s3, final Consumer<S3Object> consumer) {
+
+		final ListObjectsV2Request.Builder request = ListObjectsV2Request.builder()
+				.bucket(bucketName)
+				.prefix(prefix);
+		if (startAfter != null)
+			request.startAfter(startAfter);
+
+		for (final ListObjectsV2Response page : s3.listObjectsV2Paginator(request.build())) {
+			for (final S3Object object : page.contents()) {
+				if (endInclusive != null && object.key().compareTo(endInclusive) > 0)
+					return;
+				consumer.accept(object);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		return "s3://" + bucketName + "/" + prefix + " (" + startAfter + ", " + endInclusive + "]";
+	}
+
+	/**
+	 * Split the keys under {@code prefix} into at most {@code numSplits}
+	 * ranges of similar size.
+	 * <p>
+	 * The key space is sampled by listing common prefixes (delimiter "/")
+	 * level by level, concurrently, until there are several sampled prefixes
+	 * per split or {@code maxDepth} levels are exhausted. Range boundaries are
+	 * placed at evenly spaced sampled prefixes, assuming that prefixes at one
+	 * level hold similar numbers of keys, as is the case for the grid
+	 * position directories of a dataset. A prefix without sub-prefixes yields
+	 * a single range.
+	 *
+	 * @param s3 the s3 client
+	 * @param bucketName the bucket
+	 * @param prefix the key prefix to split
+	 * @param numSplits the requested number of ranges
+	 * @param maxDepth the maximum number of levels to sample
+	 * @param parallelism the number of concurrent list requests
+	 * @return the ranges in key order, together covering all keys under {@code prefix}
+	 * @throws N5Exception.N5IOException if a list request failed
+	 */
+	public static List<S3KeyRange> split(
+			final S3Client s3,
+			final String bucketName,
+			final String prefix,
+			final int numSplits,
+			final int maxDepth,
+			final int parallelism) throws N5Exception.N5IOException {
+
+		List<String> samples = Collections.singletonList(prefix);
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-split", parallelism);
+		try {
+			for (int depth = 0; depth < maxDepth && samples.size() < 4 * numSplits; depth++) {
+				final List<Future<List<String>>> futures = new ArrayList<>();
+				for (final String sample : samples)
+					futures.add(executor.submit(commonPrefixes(s3, bucketName, sample)));
+
+				final List<String> next = new ArrayList<>();
+				for (final Future<List<String>> future : futures)
+					next.addAll(future.get());
+
+				if (next.size() <= samples.size())
+					break;
+
+				Collections.sort(next);
+				samples = next;
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new N5Exception.N5IOException("Interrupted while splitting " + prefix, e);
+		} catch (final ExecutionException e) {
+			throw new N5Exception.N5IOException("Failed to split " + prefix, e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+
+		return rangesFromSamples(bucketName, prefix, samples, numSplits);
+	}
+
+	/**
+	 * Create at most {@code numSplits} ranges with boundaries at evenly spaced
+	 * sorted samples.
+	 */
+	static List<S3KeyRange> rangesFromSamples(final String bucketName, final String prefix, final List<String> samples, final int numSplits) {
+
+		final int n = Math.max(1, Math.min(numSplits, samples.size()));
+		final List<S3KeyRange> ranges = new ArrayList<>(n);
+		String startAfter = null;
+		for (int i = 1; i < n; i++) {
+			/* end just before the sampled prefix so that its directory marker falls into the next range */
+			final String sample = samples.get((int)((long)i * samples.size() / n));
+			final String boundary = sample.endsWith("/") ? sample.substring(0, sample.length() - 1) : sample;
+			ranges.add(new S3KeyRange(bucketName, prefix, startAfter, boundary));
+			startAfter = boundary;
+		}
+		ranges.add(new S3KeyRange(bucketName, prefix, startAfter, null));
+		return ranges;
+	}
+
+	private static Callable<List<String>> commonPrefixes(final S3Client s3, final String bucketName, final String prefix) {
+
+		return () -> {
+			final List<String> prefixes = new ArrayList<>();
+			final ListObjectsV2Request request = ListObjectsV2Request.builder()
+					.bucket(bucketName)
+					.prefix(prefix)
+					.delimiter("/")
+					.build();
+			s3.listObjectsV2Paginator(request).commonPrefixes().forEach(p -> prefixes.add(p.prefix()));
+			/* keep prefixes without sub-prefixes as samples of themselves */
+			if (prefixes.isEmpty())
+				prefixes.add(prefix);
+			return prefixes;
+		};
+	}
+}
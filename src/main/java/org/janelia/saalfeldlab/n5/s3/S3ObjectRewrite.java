@@ -0,0 +1,368 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import static org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess.headObjectRequest;
+import static org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess.rethrowS3Exceptions;
+
+/**
+ * Rewrites an existing object from byte ranges of its current content and
+ * new data without passing the unchanged ranges through the client.
+ * <p>
+ * The new object is described as a sequence of segments, each either a
+ * byte range of the current object ({@link #copy(long, long)}) or new data
+ * ({@link #write(ReadData)}). On {@link #commit()}, the new object is built
+ * as a multipart upload in which unchanged ranges of at least
+ * {@link #MIN_PART_SIZE} bytes are copied server-side with
+ * {@code UploadPartCopy}. Shorter unchanged ranges next to new data are
+ * downloaded and uploaded with it, because all parts but the last must be at
+ * least {@link #MIN_PART_SIZE} long. Objects smaller than
+ * {@link #MIN_PART_SIZE} are written with a single {@code PUT}.
+ * <p>
+ * All reads and copies of the current object, and the final {@code PUT} or
+ * multipart completion, are pinned to its ETag at the time of
+ * {@link #commit()}, the commit fails with a
+ * {@link N5Exception.N5ConcurrentModificationException} if the object was
+ * modified while being rewritten.
+ * <p>
+ * This is intended for updates of a few inner chunks of large shards.
+ */
+public class S3ObjectRewrite {
+
+	/**
+	 * The minimum size of all but the last part of a multipart upload.
+	 */
+	public static final long MIN_PART_SIZE = 5L << 20;
+
+	/**
+	 * The maximum size of a part of a multipart upload.
+	 */
+	public static final long MAX_PART_SIZE = 5L << 30;
+
+	static class Segment {
+
+		final long sourceOffset;
+		final long length;
+		final byte[] data;
+
+		private Segment(final long sourceOffset, final long length, final byte[] data) {
+
+			this.sourceOffset = sourceOffset;
+			this.length = length;
+			this.data = data;
+		}
+
+		static Segment copy(final long sourceOffset, final long length) {
+
+			return new Segment(sourceOffset, length, null);
+		}
+
+		static Segment data(final byte[] data) {
+
+			return new Segment(-1, data.length, data);
+		}
+
+		boolean isCopy() {
+
+			return data == null;
+		}
+	}
+
+	static class PlannedPart {
+
+		/* either one copy segment that is copied server-side, or segments that are uploaded */
+		final List<Segment> segments;
+		final boolean serverSideCopy;
+
+		PlannedPart(final List<Segment> segments, final boolean serverSideCopy) {
+
+			this.segments = segments;
+			this.serverSideCopy = serverSideCopy;
+		}
+
+		long length() {
+
+			long length = 0;
+			for (final Segment segment : segments)
+				length += segment.length;
+			return length;
+		}
+	}
+
+	private final S3Client s3;
+	private final String bucketName;
+	private final String key;
+	private final int parallelism;
+	private final List<Segment> segments = new ArrayList<>();
+
+	/**
+	 * @param s3 the s3 client
+	 * @param bucketName the bucket name
+	 * @param key the key of the object to rewrite
+	 * @param parallelism the number of parts transferred concurrently
+	 */
+	public S3ObjectRewrite(final S3Client s3, final String bucketName, final String key, final int parallelism) {
+
+		this.s3 = s3;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Append a byte range of the current object.
+	 *
+	 * @param sourceOffset the offset in the current object
+	 * @param length the number of bytes
+	 * @return this
+	 */
+	public S3ObjectRewrite copy(final long sourceOffset, final long length) {
+
+		if (sourceOffset < 0 || length < 0)
+			throw new IllegalArgumentException("Invalid range " + sourceOffset + "+" + length);
+
+		if (length > 0)
+			segments.add(Segment.copy(sourceOffset, length));
+		return this;
+	}
+
+	/**
+	 * Append new data. The data are materialized immediately.
+	 *
+	 * @param data the data
+	 * @return this
+	 */
+	public S3ObjectRewrite write(final ReadData data) {
+
+		final byte[] bytes = data.allBytes();
+		if (bytes.length > 0)
+			segments.add(Segment.data(bytes));
+		return this;
+	}
+
+	/**
+	 * Replace the object with the described content.
+	 *
+	 * @throws N5Exception.N5ConcurrentModificationException if the current object was modified during the rewrite
+	 * @throws N5Exception.N5IOException if the rewrite failed
+	 */
+	public void commit() throws N5Exception {
+
+		final HeadObjectResponse head = headObjectRequest(s3, bucketName, key, null);
+		final String eTag = head.eTag();
+		final long size = head.contentLength();
+
+		long length = 0;
+		for (final Segment segment : segments) {
+			if (segment.isCopy() && segment.sourceOffset + segment.length > size)
+				throw new N5Exception.N5IOException("Range " + segment.sourceOffset + "+" + segment.length + " exceeds size " + size + " of " + key);
+			length += segment.length;
+		}
+
+		if (length < MIN_PART_SIZE)
+			putSingle(eTag);
+		else
+			putMultipart(eTag, plan(segments, MIN_PART_SIZE, MAX_PART_SIZE));
+	}
+
+	private void putSingle(final String eTag) {
+
+		final PlannedPart all = new PlannedPart(segments, false);
+		final byte[] data = assemble(all, eTag);
+		rethrowS3Exceptions(() -> s3.putObject(
+				PutObjectRequest.builder().bucket(bucketName).key(key).ifMatch(eTag).build(),
+				RequestBody.fromBytes(data)));
+	}
+
+	private void putMultipart(final String eTag, final List<PlannedPart> parts) {
+
+		final String uploadId = rethrowS3Exceptions(() -> s3.createMultipartUpload(
+				CreateMultipartUploadRequest.builder().bucket(bucketName).key(key).build())).uploadId();
+
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-rewrite", parallelism);
+		try {
+			final List<Future<CompletedPart>> futures = new ArrayList<>();
+			for (int i = 0; i < parts.size(); i++) {
+				final int partNumber = i + 1;
+				final PlannedPart part = parts.get(i);
+				futures.add(executor.submit(() -> transferPart(uploadId, partNumber, part, eTag)));
+			}
+
+			final List<CompletedPart> completed = new ArrayList<>();
+			for (final Future<CompletedPart> future : futures)
+				completed.add(future.get());
+			completed.sort(Comparator.comparing(CompletedPart::partNumber));
+
+			rethrowS3Exceptions(() -> s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+					.bucket(bucketName)
+					.key(key)
+					.uploadId(uploadId)
+					.multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+					.ifMatch(eTag)
+					.build()));
+		} catch (final InterruptedException | ExecutionException | RuntimeException e) {
+			abort(uploadId);
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			if (cause instanceof N5Exception)
+				throw (N5Exception)cause;
+			throw new N5Exception.N5IOException("Failed to rewrite " + key, cause);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private CompletedPart transferPart(final String uploadId, final int partNumber, final PlannedPart part, final String eTag) {
+
+		final String partETag;
+		if (part.serverSideCopy) {
+			final Segment segment = part.segments.get(0);
+			partETag = rethrowS3Exceptions(() -> s3.uploadPartCopy(UploadPartCopyRequest.builder()
+					.sourceBucket(bucketName)
+					.sourceKey(key)
+					.destinationBucket(bucketName)
+					.destinationKey(key)
+					.uploadId(uploadId)
+					.partNumber(partNumber)
+					.copySourceRange(range(segment.sourceOffset, segment.length))
+					.copySourceIfMatch(eTag)
+					.build())).copyPartResult().eTag();
+		} else {
+			final byte[] data = assemble(part, eTag);
+			partETag = rethrowS3Exceptions(() -> s3.uploadPart(UploadPartRequest.builder()
+					.bucket(bucketName)
+					.key(key)
+					.uploadId(uploadId)
+					.partNumber(partNumber)
+					.contentLength((long)data.length)
+					.build(), RequestBody.fromBytes(data))).eTag();
+		}
+		return CompletedPart.builder().partNumber(partNumber).eTag(partETag).build();
+	}
+
+	private byte[] assemble(final PlannedPart part, final String eTag) {
+
+		final byte[] data = new byte[Math.toIntExact(part.length())];
+		int offset = 0;
+		for (final Segment segment : part.segments) {
+			final byte[] bytes = segment.isCopy() ? download(segment, eTag) : segment.data;
+			System.arraycopy(bytes, 0, data, offset, bytes.length);
+			offset += bytes.length;
+		}
+		return data;
+	}
+
+	private byte[] download(final Segment segment, final String eTag) {
+
+		final ResponseBytes<GetObjectResponse> response = rethrowS3Exceptions(() -> s3.getObject(GetObjectRequest.builder()
+				.bucket(bucketName)
+				.key(key)
+				.range(range(segment.sourceOffset, segment.length))
+				.ifMatch(eTag)
+				.build(), ResponseTransformer.toBytes()));
+		return response.asByteArray();
+	}
+
+	private void abort(final String uploadId) {
+
+		try {
+			s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+					.bucket(bucketName)
+					.key(key)
+					.uploadId(uploadId)
+					.build());
+		} catch (final Exception ignore) {}
+	}
+
+	private static String range(final long offset, final long length) {
+
+		return String.format("bytes=%d-%d", offset, offset + length - 1);
+	}
+
+	/**
+	 * Group segments into parts such that all but the last part are at least
+	 * {@code minPartSize} long. Copy ranges of at least {@code minPartSize}
+	 * become server-side copy parts of at most {@code maxPartSize}, all other
+	 * segments are uploaded.
+	 */
+	static List<PlannedPart> plan(final List<Segment> segments, final long minPartSize, final long maxPartSize) {
+
+		final List<PlannedPart> parts = new ArrayList<>();
+		List<Segment> pending = new ArrayList<>();
+		long pendingLength = 0;
+
+		for (final Segment segment : segments) {
+			if (segment.isCopy()) {
+				long offset = segment.sourceOffset;
+				long length = segment.length;
+
+				/* fill up a short upload part from the copy range */
+				if (pendingLength > 0 && pendingLength < minPartSize) {
+					final long fill = Math.min(length, minPartSize - pendingLength);
+					pending.add(Segment.copy(offset, fill));
+					pendingLength += fill;
+					offset += fill;
+					length -= fill;
+				}
+
+				if (length >= minPartSize) {
+					if (pendingLength > 0) {
+						parts.add(new PlannedPart(pending, false));
+						pending = new ArrayList<>();
+						pendingLength = 0;
+					}
+					/* split evenly so that every piece stays above the minimum */
+					final long n = (length + maxPartSize - 1) / maxPartSize;
+					for (long i = 0; i < n; i++) {
+						final long start = offset + length * i / n;
+						final long end = offset + length * (i + 1) / n;
+						parts.add(new PlannedPart(Collections.singletonList(Segment.copy(start, end - start)), true));
+					}
+				} else if (length > 0) {
+					pending.add(Segment.copy(offset, length));
+					pendingLength += length;
+				}
+			} else {
+				pending.add(segment);
+				pendingLength += segment.length;
+			}
+
+			if (pendingLength >= minPartSize) {
+				parts.add(new PlannedPart(pending, false));
+				pending = new ArrayList<>();
+				pendingLength = 0;
+			}
+		}
+
+		if (pendingLength > 0)
+			parts.add(new PlannedPart(pending, false));
+
+		return parts;
+	}
+}
@@ -0,0 +1,339 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+
+import static org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess.rethrowS3Exceptions;
+
+/**
+ * Copies all objects under a prefix to another prefix, possibly in another
+ * bucket, with server-side {@code CopyObject} requests. No object data
+ * passes through the client.
+ * <p>
+ * Objects are copied concurrently in key order. Objects larger than the
+ * {@code CopyObject} limit of 5 GiB are copied with a multipart copy.
+ * <p>
+ * If a checkpoint file is given, the key up to which all objects have been
+ * copied is stored in it every {@link #CHECKPOINT_INTERVAL} objects and when
+ * the copy fails, and a later run with the same checkpoint file resumes after
+ * that key. The checkpoint file is removed when the copy completes.
+ * <p>
+ * Within one bucket, the source and destination prefixes must not overlap,
+ * otherwise the listing of the source would pick up copied objects.
+ */
+public class S3PrefixCopy {
+
+	/**
+	 * The maximum object size for a single {@code CopyObject} request.
+	 */
+	public static final long MAX_COPY_OBJECT_SIZE = 5L << 30;
+
+	/**
+	 * The part size of multipart copies.
+	 */
+	public static final long MULTIPART_COPY_PART_SIZE = 1L << 30;
+
+	/**
+	 * The number of copied keys after which the checkpoint is written.
+	 */
+	public static final int CHECKPOINT_INTERVAL = 1000;
+
+	private final S3Client s3;
+	private final String sourceBucket;
+	private final String sourcePrefix;
+	private final String destinationBucket;
+	private final String destinationPrefix;
+	private final int parallelism;
+	private final Path checkpoint;
+
+	private long maxCopyObjectSize = MAX_COPY_OBJECT_SIZE;
+	private long multipartCopyPartSize = MULTIPART_COPY_PART_SIZE;
+
+	private final LongAdder copiedObjects = new LongAdder();
+	private final LongAdder copiedBytes = new LongAdder();
+
+	/* listed keys that are not yet checkpointed, mapped to whether they are copied */
+	private final ConcurrentSkipListMap<String, Boolean> progress = new ConcurrentSkipListMap<>();
+	/* the key up to which all objects are copied, and the number of keys copied since it was last written */
+	private String copiedUpTo = null;
+	private int sinceCheckpoint = 0;
+
+	/**
+	 * @param s3 the s3 client
+	 * @param sourceBucket the source bucket
+	 * @param sourcePrefix the source key prefix, typically ending with "/"
+	 * @param destinationBucket the destination bucket
+	 * @param destinationPrefix the destination key prefix, typically ending with "/"
+	 * @param parallelism the number of concurrent copy requests
+	 * @param checkpoint a file to store progress for resuming, may be null
+	 */
+	public S3PrefixCopy(
+			final S3Client s3,
+			final String sourceBucket,
+			final String sourcePrefix,
+			final String destinationBucket,
+			final String destinationPrefix,
+			final int parallelism,
+			@Nullable final Path checkpoint) {
+
+		this.s3 = s3;
+		this.sourceBucket = sourceBucket;
+		this.sourcePrefix = sourcePrefix;
+		this.destinationBucket = destinationBucket;
+		this.destinationPrefix = destinationPrefix;
+		this.parallelism = Math.max(1, parallelism);
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Copy all objects, resuming from the checkpoint if one exists.
+	 *
+	 * @return the number of objects copied by this run
+	 * @throws N5Exception.N5IOException if a copy failed, progress up to the failure is kept in the checkpoint
+	 */
+	public long run() throws N5Exception.N5IOException {
+
+		if (sourceBucket.equals(destinationBucket) && (sourcePrefix.startsWith(destinationPrefix) || destinationPrefix.startsWith(sourcePrefix)))
+			throw new N5Exception.N5IOException("Cannot copy " + sourcePrefix + " to " + destinationPrefix + ", they overlap");
+
+		final String startAfter = readCheckpoint();
+		final ListObjectsV2Request.Builder request = ListObjectsV2Request.builder()
+				.bucket(sourceBucket)
+				.prefix(sourcePrefix);
+		if (startAfter != null)
+			request.startAfter(startAfter);
+
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-copy", parallelism);
+		final Semaphore inFlight = new Semaphore(4 * parallelism);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		try {
+			for (final S3Object object : s3.listObjectsV2Paginator(request.build()).contents()) {
+				if (failure.get() != null)
+					break;
+
+				inFlight.acquire();
+				progress.put(object.key(), false);
+				executor.execute(() -> {
+					try {
+						copy(object);
+						progress.put(object.key(), true);
+						copiedObjects.increment();
+						copiedBytes.add(object.size());
+						advanceCheckpoint();
+					} catch (final Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						inFlight.release();
+					}
+				});
+			}
+			/* wait for all copies */
+			inFlight.acquire(4 * parallelism);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			final N5Exception.N5IOException interrupted = new N5Exception.N5IOException("Interrupted while copying " + sourcePrefix, e);
+			writeCheckpointQuietly(interrupted);
+			throw interrupted;
+		} finally {
+			executor.shutdown();
+		}
+
+		final Throwable e = failure.get();
+		if (e != null) {
+			final N5Exception.N5IOException failed = new N5Exception.N5IOException("Failed to copy " + sourceBucket + "/" + sourcePrefix, e);
+			writeCheckpointQuietly(failed);
+			throw failed;
+		}
+
+		deleteCheckpoint();
+		return copiedObjects.sum();
+	}
+
+	/**
+	 * @return the number of objects copied so far
+	 */
+	public long getCopiedObjects() {
+
+		return copiedObjects.sum();
+	}
+
+	/**
+	 * @return the number of bytes copied so far
+	 */
+	public long getCopiedBytes() {
+
+		return copiedBytes.sum();
+	}
+
+	String destinationKey(final String sourceKey) {
+
+		return destinationPrefix + sourceKey.substring(sourcePrefix.length());
+	}
+
+	private void copy(final S3Object object) {
+
+		final String destinationKey = destinationKey(object.key());
+		if (object.size() <= maxCopyObjectSize) {
+			rethrowS3Exceptions(() -> s3.copyObject(CopyObjectRequest.builder()
+					.sourceBucket(sourceBucket)
+					.sourceKey(object.key())
+					.destinationBucket(destinationBucket)
+					.destinationKey(destinationKey)
+					.build()));
+		} else
+			multipartCopy(object, destinationKey);
+	}
+
+	private void multipartCopy(final S3Object object, final String destinationKey) {
+
+		final String uploadId = rethrowS3Exceptions(() -> s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+				.bucket(destinationBucket)
+				.key(destinationKey)
+				.build())).uploadId();
+
+		try {
+			final List<CompletedPart> parts = new ArrayList<>();
+			final long size = object.size();
+			for (long offset = 0; offset < size; offset += multipartCopyPartSize) {
+				final int partNumber = parts.size() + 1;
+				final long end = Math.min(size, offset + multipartCopyPartSize) - 1;
+				final String range = String.format("bytes=%d-%d", offset, end);
+				final String eTag = rethrowS3Exceptions(() -> s3.uploadPartCopy(UploadPartCopyRequest.builder()
+						.sourceBucket(sourceBucket)
+						.sourceKey(object.key())
+						.destinationBucket(destinationBucket)
+						.destinationKey(destinationKey)
+						.uploadId(uploadId)
+						.partNumber(partNumber)
+						.copySourceRange(range)
+						.copySourceIfMatch(object.eTag())
+						.build())).copyPartResult().eTag();
+				parts.add(CompletedPart.builder().partNumber(partNumber).eTag(eTag).build());
+			}
+
+			rethrowS3Exceptions(() -> s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+					.bucket(destinationBucket)
+					.key(destinationKey)
+					.uploadId(uploadId)
+					.multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+					.build()));
+		} catch (final RuntimeException e) {
+			try {
+				s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+						.bucket(destinationBucket)
+						.key(destinationKey)
+						.uploadId(uploadId)
+						.build());
+			} catch (final Exception ignore) {}
+			throw e;
+		}
+	}
+
+	/**
+	 * Set the size above which objects are copied with a multipart copy, and
+	 * its part size, e.g. for testing.
+	 */
+	void setMultipartCopy(final long maxCopyObjectSize, final long multipartCopyPartSize) {
+
+		this.maxCopyObjectSize = maxCopyObjectSize;
+		this.multipartCopyPartSize = multipartCopyPartSize;
+	}
+
+	/**
+	 * Move the checkpoint past the longest prefix of listed keys that are all
+	 * copied, and write it every {@link #CHECKPOINT_INTERVAL} keys.
+	 */
+	private synchronized void advanceCheckpoint() throws IOException {
+
+		for (Map.Entry<String, Boolean> first = progress.firstEntry(); first != null && first.getValue(); first = progress.firstEntry()) {
+			copiedUpTo = first.getKey();
+			progress.remove(copiedUpTo);
+			++sinceCheckpoint;
+		}
+
+		if (sinceCheckpoint >= CHECKPOINT_INTERVAL)
+			writeCheckpoint();
+	}
+
+	private synchronized void writeCheckpoint() throws IOException {
+
+		if (copiedUpTo == null || sinceCheckpoint == 0)
+			return;
+
+		writeCheckpoint(copiedUpTo);
+		sinceCheckpoint = 0;
+	}
+
+	/**
+	 * Keep the progress of a failed copy, reporting a failure to do so with {@code failure}.
+	 */
+	private void writeCheckpointQuietly(final Exception failure) {
+
+		try {
+			writeCheckpoint();
+		} catch (final IOException e) {
+			failure.addSuppressed(e);
+		}
+	}
+
+	private String readCheckpoint() throws N5Exception.N5IOException {
+
+		if (checkpoint == null || !Files.exists(checkpoint))
+			return null;
+
+		try {
+			final String key = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8);
+			return key.isEmpty() ? null : key;
+		} catch (final IOException e) {
+			throw new N5Exception.N5IOException("Could not read checkpoint " + checkpoint, e);
+		}
+	}
+
+	private void writeCheckpoint(final String key) throws IOException {
+
+		if (checkpoint == null)
+			return;
+
+		final Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		Files.write(tmp, key.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void deleteCheckpoint() throws N5Exception.N5IOException {
+
+		if (checkpoint == null)
+			return;
+
+		try {
+			Files.deleteIfExists(checkpoint);
+		} catch (final IOException e) {
+			throw new N5Exception.N5IOException("Could not delete checkpoint " + checkpoint, e);
+		}
+	}
+}
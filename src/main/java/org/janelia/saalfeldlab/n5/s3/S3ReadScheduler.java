@@ -0,0 +1,205 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.utils.IoUtils;
+
+import static org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess.rethrowS3Exceptions;
+
+/**
+ * Runs object reads with bounded parallelism in {@link ReadPriority} order.
+ * <p>
+ * Cancelling a queued read removes it from the queue. Cancelling a running
+ * read aborts its response stream, which closes the connection instead of
+ * draining the rest of the object.
+ */
+final class S3ReadScheduler {
+
+	private static final class Read implements Callable<byte[]> {
+
+		private final S3Client s3;
+		private final GetObjectRequest request;
+		private volatile ResponseInputStream<GetObjectResponse> stream = null;
+		private volatile boolean aborted = false;
+
+		Read(final S3Client s3, final GetObjectRequest request) {
+
+			this.s3 = s3;
+			this.request = request;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+
+			if (aborted)
+				return null;
+
+			stream = rethrowS3Exceptions(() -> s3.getObject(request));
+			try {
+				if (aborted) {
+					stream.abort();
+					return null;
+				}
+				return IoUtils.toByteArray(stream);
+			} finally {
+				stream.close();
+			}
+		}
+
+		void abort() {
+
+			aborted = true;
+			final ResponseInputStream<GetObjectResponse> s = stream;
+			if (s != null)
+				s.abort();
+		}
+	}
+
+	/**
+	 * A read in the queue of the scheduler.
+	 */
+	final class ScheduledRead extends FutureTask<byte[]> implements Comparable<ScheduledRead> {
+
+		private final Read read;
+		private final String key;
+		private final ReadPriority priority;
+		private final long sequence;
+		private final Consumer<ScheduledRead> onDone;
+
+		private ScheduledRead(final Read read, final String key, final ReadPriority priority, @Nullable final Consumer<ScheduledRead> onDone) {
+
+			super(read);
+			this.read = read;
+			this.key = key;
+			this.priority = priority;
+			this.sequence = sequenceNumbers.getAndIncrement();
+			this.onDone = onDone;
+		}
+
+		String getKey() {
+
+			return key;
+		}
+
+		ReadPriority getPriority() {
+
+			return priority;
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+
+			final boolean cancelled = super.cancel(false);
+			if (cancelled) {
+				read.abort();
+				executor.remove(this);
+			}
+			return cancelled;
+		}
+
+		/**
+		 * Cancel this read if it is still queued, but not if it is running.
+		 *
+		 * @return whether the read was removed from the queue before it started
+		 */
+		boolean cancelIfQueued() {
+
+			if (!executor.remove(this))
+				return false;
+
+			cancel(false);
+			return true;
+		}
+
+		@Override
+		protected void done() {
+
+			if (onDone != null)
+				onDone.accept(this);
+		}
+
+		@Override
+		public int compareTo(final ScheduledRead other) {
+
+			final int c = priority.compareTo(other.priority);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final S3Client s3;
+	private final String bucketName;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong sequenceNumbers = new AtomicLong();
+
+	/**
+	 * @param s3 the s3 client
+	 * @param bucketName the bucket
+	 * @param parallelism the maximum number of concurrent reads
+	 */
+	S3ReadScheduler(final S3Client s3, final String bucketName, final int parallelism) {
+
+		this.s3 = s3;
+		this.bucketName = bucketName;
+		final int nThreads = Math.max(1, parallelism);
+		executor = new ThreadPoolExecutor(
+				nThreads,
+				nThreads,
+				30,
+				TimeUnit.SECONDS,
+				new PriorityBlockingQueue<>(),
+				S3Executors.daemonThreadFactory("n5-s3-read"));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue a read of the whole object at {@code key}.
+	 *
+	 * @param key the key
+	 * @param priority the priority
+	 * @param onDone called when the read completed, failed, or was cancelled, may be null
+	 * @return the read, failing with {@link N5Exception.N5NoSuchKeyException} if the object does not exist
+	 */
+	ScheduledRead submit(final String key, final ReadPriority priority, @Nullable final Consumer<ScheduledRead> onDone) {
+
+		final GetObjectRequest request = GetObjectRequest.builder()
+				.bucket(bucketName)
+				.key(key)
+				.build();
+		final ScheduledRead read = new ScheduledRead(new Read(s3, request), key, priority, onDone);
+		executor.execute(read);
+		return read;
+	}
+
+	/**
+	 * Complete queued and running reads, but accept no new reads.
+	 */
+	void drain() {
+
+		executor.shutdown();
+	}
+
+	/**
+	 * Cancel queued reads and stop. Running reads complete.
+	 */
+	void shutdown() {
+
+		for (final Object queued : executor.getQueue().toArray())
+			((ScheduledRead)queued).cancel(false);
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,139 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
+
+/**
+ * A {@link WriteBehindIoPolicy} that persists pending objects in a local
+ * staging directory before they are uploaded.
+ * <p>
+ * Each write is stored in its own file and the file is removed after the
+ * object was uploaded. If the JVM dies with uploads in flight, a new
+ * instance on the same staging directory replays the remaining files in
+ * their original order.
+ * <p>
+ * A staging directory must only be used for one bucket, and by one instance
+ * at a time. Keys are encoded into file names, so very long keys may exceed
+ * the file name length limit of the local file system.
+ */
+public class StagedWriteBehindIoPolicy extends WriteBehindIoPolicy {
+
+	private static final String SUFFIX = ".pending";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final Path stagingDirectory;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Create the policy and replay objects left in {@code stagingDirectory}
+	 * by a previous instance.
+	 *
+	 * @param delegate the policy that performs the uploads, reads and deletes
+	 * @param stagingDirectory the local directory for pending objects
+	 * @param maxPendingBytes the maximum number of bytes waiting for upload
+	 * @param numWorkers the number of concurrent uploads
+	 * @throws IOException if the staging directory could not be created or read
+	 */
+	public StagedWriteBehindIoPolicy(
+			final S3IoPolicy delegate,
+			final Path stagingDirectory,
+			final long maxPendingBytes,
+			final int numWorkers) throws IOException {
+
+		super(delegate, maxPendingBytes, numWorkers);
+		this.stagingDirectory = stagingDirectory;
+		Files.createDirectories(stagingDirectory);
+		replay();
+	}
+
+	@Override
+	public void write(final String key, final ReadData readData) throws IOException {
+
+		final byte[] data = readData.allBytes();
+		final Path staged = stage(key, data);
+		enqueue(key, data, () -> deleteQuietly(staged));
+	}
+
+	private Path stage(final String key, final byte[] data) throws IOException {
+
+		final String name = String.format("%019d-%s", sequence.getAndIncrement(), encode(key));
+		final Path tmp = stagingDirectory.resolve(name + TMP_SUFFIX);
+		try (final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+		final Path staged = Files.move(tmp, stagingDirectory.resolve(name + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		return staged;
+	}
+
+	/**
+	 * Persist the directory entry of a renamed file. Directories cannot be
+	 * opened for syncing on some platforms (e.g. Windows), where this is a
+	 * no-op.
+	 */
+	private void syncDirectory() {
+
+		try (final FileChannel directory = FileChannel.open(stagingDirectory, StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (final IOException ignore) {}
+	}
+
+	private void replay() throws IOException {
+
+		final List<Path> staged = new ArrayList<>();
+		try (final DirectoryStream<Path> files = Files.newDirectoryStream(stagingDirectory)) {
+			for (final Path file : files) {
+				final String name = file.getFileName().toString();
+				if (name.endsWith(SUFFIX))
+					staged.add(file);
+				else if (name.endsWith(TMP_SUFFIX))
+					/* never completed staging, the write did not return */
+					deleteQuietly(file);
+			}
+		}
+
+		/* names start with a zero padded sequence number */
+		staged.sort(Comparator.comparing(file -> file.getFileName().toString()));
+		for (final Path file : staged) {
+			final String name = file.getFileName().toString();
+			final int separator = name.indexOf('-');
+			sequence.set(Math.max(sequence.get(), Long.parseLong(name.substring(0, separator)) + 1));
+			final String key = decode(name.substring(separator + 1, name.length() - SUFFIX.length()));
+			enqueue(key, Files.readAllBytes(file), () -> deleteQuietly(file));
+		}
+	}
+
+	private static String encode(final String key) {
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String decode(final String encodedKey) {
+
+		return new String(Base64.getUrlDecoder().decode(encodedKey), StandardCharsets.UTF_8);
+	}
+
+	private static void deleteQuietly(final Path file) {
+
+		try {
+			Files.deleteIfExists(file);
+		} catch (final IOException ignore) {}
+	}
+}
@@ -0,0 +1,263 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
+import org.janelia.saalfeldlab.n5.readdata.VolatileReadData;
+
+/**
+ * An {@link S3IoPolicy} that uploads writes asynchronously.
+ * <p>
+ * {@link #write(String, ReadData)} materializes the data, enqueues it and
+ * returns once the data fits into the memory budget. A configurable number of
+ * workers upload enqueued objects through a delegate policy. Writes to the
+ * same key are uploaded in order. Reads and deletes of keys with pending
+ * uploads are consistent with the writes issued in this process, and
+ * {@link AmazonS3KeyValueAccess#isFile(String)} finds pending keys. Listings,
+ * and therefore {@link AmazonS3KeyValueAccess#exists(String)},
+ * {@link AmazonS3KeyValueAccess#isDirectory(String)} and
+ * {@link AmazonS3KeyValueAccess#list(String)}, only see objects once they are
+ * uploaded; call {@link #flush()} before relying on them.
+ * <p>
+ * Objects are uploaded with {@link S3IoPolicy#writeChecked(String, ReadData)}
+ * of the delegate, upload failures are reported with their keys by the next
+ * {@link #flush()} or {@link #close()}. Writes after {@link #close()} fail.
+ */
+public class WriteBehindIoPolicy implements S3IoPolicy {
+
+	private static class Pending {
+
+		final byte[] data;
+		final Runnable onUploaded;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Pending(final byte[] data, final Runnable onUploaded) {
+
+			this.data = data;
+			this.onUploaded = onUploaded;
+		}
+	}
+
+	protected final S3IoPolicy delegate;
+	private final long maxPendingBytes;
+	private final ExecutorService workers;
+
+	private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+	/* upload failures since the last flush */
+	private final List<IOException> failures = new ArrayList<>();
+	private final Object budgetLock = new Object();
+	private long pendingBytes = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param delegate the policy that performs the uploads, reads and deletes
+	 * @param maxPendingBytes the maximum number of bytes waiting for upload
+	 * @param numWorkers the number of concurrent uploads
+	 */
+	public WriteBehindIoPolicy(final S3IoPolicy delegate, final long maxPendingBytes, final int numWorkers) {
+
+		this.delegate = delegate;
+		this.maxPendingBytes = maxPendingBytes;
+		this.workers = S3Executors.newBoundedExecutor("n5-s3-write-behind", numWorkers);
+	}
+
+	@Override
+	public void write(final String key, final ReadData readData) throws IOException {
+
+		enqueue(key, readData.allBytes(), null);
+	}
+
+	/**
+	 * Enqueue data for upload.
+	 *
+	 * @param key the key
+	 * @param data the data
+	 * @param onUploaded called after a successful upload, may be null
+	 * @throws IOException if this policy is closed, or if interrupted while waiting for the memory budget
+	 */
+	protected void enqueue(final String key, final byte[] data, final Runnable onUploaded) throws IOException {
+
+		if (closed)
+			throw new IOException("Cannot write " + key + ", the write-behind policy is closed");
+
+		acquire(data.length);
+		pending.compute(key, (k, previous) -> {
+			final Pending entry = new Pending(data, onUploaded);
+			final CompletableFuture<Void> after = previous == null
+					? CompletableFuture.completedFuture(null)
+					: previous.done;
+			/* the workers reject the upload if they were shut down in the meantime */
+			after.thenRunAsync(() -> process(k, entry), workers).exceptionally(e -> {
+				fail(k, e);
+				finish(k, entry);
+				return null;
+			});
+			return entry;
+		});
+	}
+
+	private void process(final String key, final Pending entry) {
+
+		try {
+			upload(key, entry.data);
+			if (entry.onUploaded != null)
+				entry.onUploaded.run();
+		} catch (final Throwable e) {
+			fail(key, e);
+		} finally {
+			finish(key, entry);
+		}
+	}
+
+	private void fail(final String key, final Throwable e) {
+
+		synchronized (failures) {
+			failures.add(new IOException("Asynchronous upload of " + key + " failed", e));
+		}
+	}
+
+	private void finish(final String key, final Pending entry) {
+
+		if (entry.done.isDone())
+			return;
+
+		pending.remove(key, entry);
+		release(entry.data.length);
+		entry.done.complete(null);
+	}
+
+	/**
+	 * Upload one pending object. Called on a worker thread.
+	 *
+	 * @param key the key
+	 * @param data the data
+	 * @throws IOException if the upload failed
+	 */
+	protected void upload(final String key, final byte[] data) throws IOException {
+
+		delegate.writeChecked(key, ReadData.from(data));
+	}
+
+	private void acquire(final long numBytes) throws IOException {
+
+		synchronized (budgetLock) {
+			/* admit objects larger than the budget if nothing else is pending */
+			while (pendingBytes > 0 && pendingBytes + numBytes > maxPendingBytes) {
+				try {
+					budgetLock.wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for pending uploads", e);
+				}
+			}
+			pendingBytes += numBytes;
+		}
+	}
+
+	private void release(final long numBytes) {
+
+		synchronized (budgetLock) {
+			pendingBytes -= numBytes;
+			budgetLock.notifyAll();
+		}
+	}
+
+	@Override
+	public VolatileReadData read(final String key) throws IOException {
+
+		final Pending entry = pending.get(key);
+		if (entry != null)
+			return VolatileReadData.from(new BytesLazyRead(entry.data));
+
+		return delegate.read(key);
+	}
+
+	@Override
+	public int readInto(final String key, final long offset, final long length, final ByteBuffer destination) throws IOException {
+
+		final Pending entry = pending.get(key);
+		if (entry != null)
+			return AmazonS3Utils.copyInto(entry.data, offset, length, destination);
+
+		return delegate.readInto(key, offset, length, destination);
+	}
+
+	@Override
+	public boolean isPending(final String key) {
+
+		return pending.containsKey(key) || delegate.isPending(key);
+	}
+
+	@Override
+	public void delete(final String key) throws IOException {
+
+		final String prefix = AmazonS3KeyValueAccess.addTrailingSlash(key);
+		final List<CompletableFuture<Void>> uploads = new ArrayList<>();
+		pending.forEach((k, entry) -> {
+			if (k.equals(key) || k.startsWith(prefix))
+				uploads.add(entry.done);
+		});
+		await(uploads);
+		delegate.delete(key);
+	}
+
+	/**
+	 * Wait for all pending uploads to complete.
+	 *
+	 * @throws IOException the first upload failure since the last flush, with later failures suppressed
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		await(collectUploads());
+
+		final IOException e;
+		synchronized (failures) {
+			e = failures.isEmpty() ? null : failures.get(0);
+			for (int i = 1; i < failures.size(); i++)
+				e.addSuppressed(failures.get(i));
+			failures.clear();
+		}
+		if (e != null)
+			throw e;
+
+		delegate.flush();
+	}
+
+	/**
+	 * Flush pending uploads and stop the workers. Further writes fail.
+	 *
+	 * @throws IOException the first upload failure since the last flush, with later failures suppressed
+	 */
+	@Override
+	public void close() throws IOException {
+
+		closed = true;
+		try {
+			flush();
+		} finally {
+			workers.shutdown();
+			delegate.close();
+		}
+	}
+
+	private List<CompletableFuture<Void>> collectUploads() {
+
+		final List<CompletableFuture<Void>> uploads = new ArrayList<>();
+		pending.values().forEach(entry -> uploads.add(entry.done));
+		return uploads;
+	}
+
+	private static void await(final List<CompletableFuture<Void>> uploads) {
+
+		for (final CompletableFuture<Void> upload : uploads) {
+			upload.join();
+		}
+	}
+}
@@ -1,10 +1,17 @@
 package org.janelia.saalfeldlab.n5.s3;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.N5Exception;
 import org.janelia.saalfeldlab.n5.N5URI;
 import org.janelia.saalfeldlab.n5.kva.AbstractKeyValueAccessTest;
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
 import org.janelia.saalfeldlab.n5.s3.mock.MockS3Factory;
 import org.junit.After;
 import org.junit.BeforeClass;
@@ -13,10 +20,26 @@ import org.junit.Test;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.retry.RetryMode;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AmazonS3KeyValueAccessTest extends AbstractKeyValueAccessTest {
 
@@ -55,6 +78,453 @@ public class AmazonS3KeyValueAccessTest extends AbstractKeyValueAccessTest {
 
 	}
 
+	@Test
+	public void testListRecursive() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String[] keys = {"a/attributes.json", "a/b/attributes.json", "a/b/0/0", "a/b/0/1", "c/d"};
+		for (final String key : keys)
+			kva.write(kva.compose(root, key), ReadData.from(new byte[]{1}));
+
+		final HashSet<String> listed = new HashSet<>(Arrays.asList(kva.listRecursive(root.toString(), 4)));
+		assertEquals(new HashSet<>(Arrays.asList(keys)), listed);
+	}
+
+	@Test
+	public void testDirectoryMarkers() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+
+		kva.setDirectoryMarkers(AmazonS3KeyValueAccess.DirectoryMarkers.NONE);
+		kva.createDirectories(kva.compose(root, "a/b"));
+		assertFalse(kva.isDirectory(kva.compose(root, "a")));
+		kva.write(kva.compose(root, "a/b/c"), ReadData.from(new byte[]{1}));
+		assertTrue(kva.isDirectory(kva.compose(root, "a/b")));
+		assertEquals(new HashSet<>(Arrays.asList("a/b/c")), new HashSet<>(Arrays.asList(kva.listRecursive(root.toString(), 4))));
+
+		kva.setDirectoryMarkers(AmazonS3KeyValueAccess.DirectoryMarkers.IF_MISSING);
+		kva.createDirectories(kva.compose(root, "d/e"));
+		kva.createDirectories(kva.compose(root, "d/f"));
+		assertEquals(
+				new HashSet<>(Arrays.asList("a/b/c", "d/", "d/e/", "d/f/")),
+				new HashSet<>(Arrays.asList(kva.listRecursive(root.toString(), 4))));
+
+		// close releases the marker threads, they are recreated on demand
+		kva.close();
+		kva.createDirectories(kva.compose(root, "g/h"));
+		assertTrue(kva.isDirectory(kva.compose(root, "g/h")));
+		kva.close();
+	}
+
+	@Test
+	public void testSubmitRead() throws InterruptedException, ExecutionException {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final byte[] data = {1, 2, 3};
+		kva.write(kva.compose(root, "a"), ReadData.from(data));
+		kva.setReadParallelism(1);
+
+		final Future<byte[]> interactive = kva.submitRead(kva.compose(root, "a"), ReadPriority.INTERACTIVE);
+		final Future<byte[]> background = kva.submitRead(kva.compose(root, "a"), ReadPriority.BACKGROUND);
+		final Future<byte[]> missing = kva.submitRead(kva.compose(root, "b"), ReadPriority.PREFETCH);
+		final boolean cancelled = background.cancel(true);
+
+		assertArrayEquals(data, interactive.get());
+		// the background read may have completed before it was cancelled
+		if (cancelled)
+			assertTrue(background.isCancelled());
+		else
+			assertArrayEquals(data, background.get());
+		final ExecutionException e = assertThrows(ExecutionException.class, missing::get);
+		assertTrue(e.getCause() instanceof N5Exception.N5NoSuchKeyException);
+	}
+
+	@Test
+	public void testPrefetchPendingWrite() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String path = kva.compose(root, "a");
+		kva.write(path, ReadData.from(new byte[]{1}));
+
+		/* keep the next write pending until released */
+		final CountDownLatch release = new CountDownLatch(1);
+		final S3IoPolicy blocking = new S3IoPolicy.Unsafe(kva.getS3(), kva.getBucketName()) {
+
+			@Override
+			public void writeChecked(final String key, final ReadData readData) {
+
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					throw new N5Exception.N5IOException("Interrupted", e);
+				}
+				super.writeChecked(key, readData);
+			}
+		};
+		kva.setIoPolicy(new WriteBehindIoPolicy(blocking, 1 << 20, 1));
+		kva.enablePrefetch(1 << 20, 4);
+
+		kva.write(path, ReadData.from(new byte[]{2, 3}));
+		kva.prefetch(path);
+		assertEquals(2, kva.size(path));
+		assertArrayEquals(new byte[]{2, 3}, kva.createReadData(path).allBytes());
+		final ByteBuffer destination = ByteBuffer.allocate(2);
+		kva.readInto(path, 0, 2, destination);
+		assertArrayEquals(new byte[]{2, 3}, destination.array());
+
+		release.countDown();
+		kva.flush();
+		kva.disablePrefetch();
+	}
+
+	@Test(timeout = 30000)
+	public void testPrefetchQueued() throws InterruptedException, ExecutionException {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess writer = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final byte[] data = {1, 2, 3};
+		writer.write(writer.compose(root, "slow"), ReadData.from(data));
+		writer.write(writer.compose(root, "a"), ReadData.from(data));
+
+		/* reads of "slow" wait until released */
+		final CountDownLatch release = new CountDownLatch(1);
+		final S3Client s3 = writer.getS3();
+		final S3Client slow = (S3Client)Proxy.newProxyInstance(
+				S3Client.class.getClassLoader(),
+				new Class<?>[]{S3Client.class},
+				(proxy, method, args) -> {
+					if (args != null && args.length > 0 && args[0] instanceof GetObjectRequest && ((GetObjectRequest)args[0]).key().endsWith("/slow"))
+						release.await();
+					try {
+						return method.invoke(s3, args);
+					} catch (final InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		final AmazonS3KeyValueAccess kva = new AmazonS3KeyValueAccess(slow, root, false);
+		kva.setReadParallelism(1);
+		kva.enablePrefetch(1 << 20, 4);
+
+		// the prefetch is queued behind a running read, a foreground read does not wait for it
+		final Future<byte[]> running = kva.submitRead(kva.compose(root, "slow"), ReadPriority.INTERACTIVE);
+		kva.prefetch(kva.compose(root, "a"));
+		assertArrayEquals(data, kva.createReadData(kva.compose(root, "a")).allBytes());
+
+		release.countDown();
+		assertArrayEquals(data, running.get());
+		kva.close();
+	}
+
+	@Test
+	public void testStreamingThreshold() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final byte[] small = randomBytes(10);
+		final byte[] large = randomBytes(100);
+		kva.write(kva.compose(root, "small"), ReadData.from(small));
+		kva.write(kva.compose(root, "large"), ReadData.from(large));
+		final String smallKey = AmazonS3KeyValueAccess.removeLeadingSlash(AmazonS3Utils.getS3Key(kva.compose(root, "small")));
+		final String largeKey = AmazonS3KeyValueAccess.removeLeadingSlash(AmazonS3Utils.getS3Key(kva.compose(root, "large")));
+
+		// small whole-object reads are buffered and release their connection
+		final S3IoPolicy.S3LazyRead smallRead = new S3IoPolicy.S3LazyRead(kva.getS3(), kva.getBucketName(), smallKey, false).streamAbove(50);
+		assertArrayEquals(small, smallRead.materialize(0, -1).allBytes());
+		assertEquals(0, smallRead.openStreams());
+
+		// large reads are streamed until they are consumed
+		final S3IoPolicy.S3LazyRead largeRead = new S3IoPolicy.S3LazyRead(kva.getS3(), kva.getBucketName(), largeKey, false).streamAbove(50);
+		assertArrayEquals(large, largeRead.materialize(0, -1).allBytes());
+		largeRead.materialize(0, -1);
+		assertEquals(1, largeRead.openStreams());
+
+		// and aborted on close if they were not
+		largeRead.close();
+		assertEquals(0, largeRead.openStreams());
+	}
+
+	@Test
+	public void testUploadReplayable() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String key = AmazonS3KeyValueAccess.removeLeadingSlash(AmazonS3Utils.getS3Key(kva.compose(root, "a")));
+		final byte[] data = randomBytes(1000);
+
+		/* send every PUT twice with the same body, like a retry of the client */
+		final S3Client s3 = kva.getS3();
+		final S3Client retrying = (S3Client)Proxy.newProxyInstance(
+				S3Client.class.getClassLoader(),
+				new Class<?>[]{S3Client.class},
+				(proxy, method, args) -> {
+					try {
+						if (method.getName().equals("putObject"))
+							method.invoke(s3, args);
+						return method.invoke(s3, args);
+					} catch (final InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+
+		final S3IoPolicy.Unsafe policy = new S3IoPolicy.Unsafe(retrying, kva.getBucketName());
+
+		// data of known length are read again
+		policy.writeChecked(key, ReadData.from(data));
+		assertArrayEquals(data, kva.createReadData(kva.compose(root, "a")).allBytes());
+
+		// data of unknown length are buffered
+		final byte[] unknownLength = randomBytes(1000);
+		policy.writeChecked(key, ReadData.from(new ByteArrayInputStream(unknownLength)));
+		assertArrayEquals(unknownLength, kva.createReadData(kva.compose(root, "a")).allBytes());
+	}
+
+	@Test
+	public void testPartBuffer() throws IOException {
+
+		final int partSize = S3IoPolicy.Unsafe.MIN_UPLOAD_PART_SIZE;
+
+		/* small data of unknown length do not allocate a whole part */
+		final S3IoPolicy.Unsafe.PartBuffer small = new S3IoPolicy.Unsafe.PartBuffer(1 << 10);
+		small.fill(new ByteArrayInputStream(randomBytes(100)), partSize);
+		assertEquals(100, small.size());
+		assertEquals(1 << 10, small.capacity());
+
+		/* the buffer grows up to the part size and keeps its capacity */
+		final byte[] large = randomBytes(partSize + 100);
+		final ByteArrayInputStream in = new ByteArrayInputStream(large);
+		final S3IoPolicy.Unsafe.PartBuffer part = new S3IoPolicy.Unsafe.PartBuffer(1 << 10);
+		part.fill(in, partSize);
+		assertEquals(partSize, part.size());
+		assertEquals(partSize, part.capacity());
+		part.reset();
+		part.fill(in, partSize);
+		assertEquals(100, part.size());
+		assertEquals(partSize, part.capacity());
+	}
+
+	@Test
+	public void testPrewarmConnections() throws InterruptedException, ExecutionException {
+
+		final URI root = tempUri();
+		newKeyValueAccess(root);
+		final AmazonS3KeyValueAccess kva = new AmazonS3KeyValueAccess(MockS3Factory.getOrCreateS3(), root, true, 4);
+		kvas.add(kva);
+		kva.getPrewarm().get();
+		assertTrue(kva.prewarmConnections(0).isDone());
+
+		// failures are reported, not swallowed
+		kva.delete("/");
+		final ExecutionException e = assertThrows(ExecutionException.class, () -> kva.prewarmConnections(2).get());
+		assertTrue(e.getCause() instanceof N5Exception.N5IOException);
+	}
+
+	@Test
+	public void testRewriteSinglePut() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String path = kva.compose(root, "shard");
+		final byte[] data = randomBytes(100);
+		kva.write(path, ReadData.from(data));
+
+		kva.rewrite(path, 2)
+				.copy(0, 40)
+				.write(ReadData.from(new byte[]{1, 2}))
+				.copy(42, 58)
+				.commit();
+
+		data[40] = 1;
+		data[41] = 2;
+		assertArrayEquals(data, kva.createReadData(path).allBytes());
+	}
+
+	@Test
+	public void testRewriteUploadPartCopy() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String path = kva.compose(root, "shard");
+		final int half = (int)S3ObjectRewrite.MIN_PART_SIZE + 1000;
+		final byte[] data = randomBytes(2 * half);
+		kva.write(path, ReadData.from(data));
+
+		// both unchanged halves are long enough to be copied server-side
+		kva.rewrite(path, 2)
+				.copy(0, half)
+				.write(ReadData.from(new byte[]{1, 2}))
+				.copy(half + 2, half - 2)
+				.commit();
+
+		data[half] = 1;
+		data[half + 1] = 2;
+		assertArrayEquals(data, kva.createReadData(path).allBytes());
+	}
+
+	@Test
+	public void testRewriteConflict() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String path = kva.compose(root, "shard");
+		final String key = AmazonS3KeyValueAccess.removeLeadingSlash(AmazonS3Utils.getS3Key(path));
+		final int half = (int)S3ObjectRewrite.MIN_PART_SIZE + 1000;
+		final byte[] modified = {42};
+
+		// the object is replaced after commit() learned its ETag
+		kva.write(path, ReadData.from(randomBytes(100)));
+		final S3Client beforePut = interceptOnce(kva.getS3(), "putObject", () -> kva.write(path, ReadData.from(modified)));
+		assertThrows(N5Exception.N5ConcurrentModificationException.class, () -> new S3ObjectRewrite(beforePut, kva.getBucketName(), key, 2)
+				.copy(0, 100)
+				.commit());
+		assertArrayEquals(modified, kva.createReadData(path).allBytes());
+
+		kva.write(path, ReadData.from(randomBytes(2 * half)));
+		final S3Client beforeCopy = interceptOnce(kva.getS3(), "uploadPartCopy", () -> kva.write(path, ReadData.from(modified)));
+		assertThrows(N5Exception.N5ConcurrentModificationException.class, () -> new S3ObjectRewrite(beforeCopy, kva.getBucketName(), key, 1)
+				.copy(0, half)
+				.write(ReadData.from(new byte[]{1, 2}))
+				.copy(half + 2, half - 2)
+				.commit());
+		assertArrayEquals(modified, kva.createReadData(path).allBytes());
+	}
+
+	@Test
+	public void testCopy() throws IOException {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final String[] keys = {"a/0", "a/1", "a/2", "a/b/3"};
+		for (final String key : keys)
+			kva.write(kva.compose(root, key), ReadData.from(key.getBytes(StandardCharsets.UTF_8)));
+
+		assertEquals(keys.length, kva.copy(kva.compose(root, "a"), kva.compose(root, "c"), 2, null));
+		for (final String key : keys)
+			assertArrayEquals(key.getBytes(StandardCharsets.UTF_8), kva.createReadData(kva.compose(root, "c" + key.substring(1))).allBytes());
+
+		// overlapping prefixes would copy their own copies
+		assertThrows(N5Exception.N5IOException.class, () -> kva.copy(kva.compose(root, "a"), kva.compose(root, "a/b"), 2, null));
+		assertThrows(N5Exception.N5IOException.class, () -> kva.copy(kva.compose(root, "a/b"), kva.compose(root, "a"), 2, null));
+		assertEquals(keys.length, kva.listRecursive(kva.compose(root, "a"), 4).length);
+	}
+
+	@Test
+	public void testCopyResume() throws IOException {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		for (final String key : new String[]{"a/0", "a/1", "a/2", "a/3"})
+			kva.write(kva.compose(root, key), ReadData.from(new byte[]{1}));
+
+		// a checkpoint left by an interrupted copy after "a/1"
+		final Path checkpoint = Files.createTempFile("n5-s3-copy", ".checkpoint");
+		Files.write(checkpoint, (kva.directoryPrefix(kva.compose(root, "a")) + "1").getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(2, kva.copy(kva.compose(root, "a"), kva.compose(root, "c"), 2, checkpoint));
+		assertEquals(new HashSet<>(Arrays.asList("2", "3")), new HashSet<>(Arrays.asList(kva.listRecursive(kva.compose(root, "c"), 4))));
+		assertFalse(Files.exists(checkpoint));
+	}
+
+	@Test
+	public void testMove() throws IOException {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		for (final String key : new String[]{"a/0", "a/b/1"})
+			kva.write(kva.compose(root, key), ReadData.from(new byte[]{1}));
+
+		// prefetched objects of the source are dropped
+		kva.enablePrefetch(1 << 20, 4);
+		kva.prefetch(kva.compose(root, "a/0"));
+
+		kva.move(kva.compose(root, "a"), kva.compose(root, "c"), 2, null);
+		assertEquals(0, kva.listRecursive(kva.compose(root, "a"), 4).length);
+		assertThrows(N5Exception.N5NoSuchKeyException.class, () -> kva.createReadData(kva.compose(root, "a/0")).allBytes());
+		assertEquals(new HashSet<>(Arrays.asList("0", "b/1")), new HashSet<>(Arrays.asList(kva.listRecursive(kva.compose(root, "c"), 4))));
+
+		assertThrows(N5Exception.N5IOException.class, () -> kva.move(kva.compose(root, "c"), kva.compose(root, "c/d"), 2, null));
+	}
+
+	@Test
+	public void testMoveResumeAfterCopy() throws IOException {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		kva.write(kva.compose(root, "a/0"), ReadData.from(new byte[]{1}));
+		kva.write(kva.compose(root, "a/2"), ReadData.from(new byte[]{1}));
+
+		// a move that completed the copy, but not the delete, of the source
+		final Path checkpoint = Files.createTempFile("n5-s3-move", ".checkpoint");
+		Files.delete(checkpoint);
+		kva.copy(kva.compose(root, "a"), kva.compose(root, "c"), 2, checkpoint);
+		final Path copied = checkpoint.resolveSibling(checkpoint.getFileName() + ".copied");
+		Files.createFile(copied);
+
+		// not copied again when resuming, objects written after the copy are kept
+		kva.write(kva.compose(root, "a/1"), ReadData.from(new byte[]{1}));
+		kva.write(kva.compose(root, "a/2"), ReadData.from(new byte[]{2}));
+		kva.move(kva.compose(root, "a"), kva.compose(root, "c"), 2, checkpoint);
+		assertEquals(new HashSet<>(Arrays.asList("1", "2")), new HashSet<>(Arrays.asList(kva.listRecursive(kva.compose(root, "a"), 4))));
+		assertArrayEquals(new byte[]{2}, kva.createReadData(kva.compose(root, "a/2")).allBytes());
+		assertEquals(new HashSet<>(Arrays.asList("0", "2")), new HashSet<>(Arrays.asList(kva.listRecursive(kva.compose(root, "c"), 4))));
+		assertFalse(Files.exists(copied));
+		assertFalse(Files.exists(checkpoint));
+	}
+
+	@Test
+	public void testMultipartCopy() {
+
+		final URI root = tempUri();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)newKeyValueAccess(root);
+		final int partSize = (int)S3ObjectRewrite.MIN_PART_SIZE;
+		final byte[] data = randomBytes(2 * partSize + 1000);
+		kva.write(kva.compose(root, "a/big"), ReadData.from(data));
+
+		final S3PrefixCopy copy = new S3PrefixCopy(
+				kva.getS3(),
+				kva.getBucketName(),
+				kva.directoryPrefix(kva.compose(root, "a")),
+				kva.getBucketName(),
+				kva.directoryPrefix(kva.compose(root, "c")),
+				2,
+				null);
+		copy.setMultipartCopy(partSize, partSize);
+		assertEquals(1, copy.run());
+		assertEquals(data.length, copy.getCopiedBytes());
+		assertArrayEquals(data, kva.createReadData(kva.compose(root, "c/big")).allBytes());
+	}
+
+	private static byte[] randomBytes(final int n) {
+
+		final byte[] data = new byte[n];
+		new Random(n).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Wrap {@code s3} so that {@code action} runs before the first call of
+	 * {@code methodName}.
+	 */
+	private static S3Client interceptOnce(final S3Client s3, final String methodName, final Runnable action) {
+
+		final AtomicBoolean done = new AtomicBoolean();
+		return (S3Client)Proxy.newProxyInstance(
+				S3Client.class.getClassLoader(),
+				new Class<?>[]{S3Client.class},
+				(proxy, method, args) -> {
+					if (method.getName().equals(methodName) && done.compareAndSet(false, true))
+						action.run();
+					try {
+						return method.invoke(s3, args);
+					} catch (final InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+
 	@Test
 	@Ignore("This test queries actual public s3 buckets, and should only be run manually.")
 	public void publicS3URITest() {
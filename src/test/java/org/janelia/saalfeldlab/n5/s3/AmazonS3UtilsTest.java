@@ -2,15 +2,22 @@ package org.janelia.saalfeldlab.n5.s3;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 import org.junit.Test;
 
 import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
 
 public class AmazonS3UtilsTest {
 
@@ -102,4 +109,50 @@ public class AmazonS3UtilsTest {
 		assertEquals("Invalid URI returns empty string for key", "", AmazonS3Utils.getS3Key("invalid uri \\ _ ~ 435:  q2234[;5."));
 	}
 
+	@Test
+	public void testClientProfileConnections() {
+
+		for (final S3ClientProfile profile : S3ClientProfile.values()) {
+			assertEquals(profile.name(), S3ClientProfile.DEFAULT_MAX_CONNECTIONS, profile.maxConnections(1));
+			assertTrue(profile.name(), profile.maxConnections(256) >= 256);
+			assertTrue(profile.name(), profile.maxConnections(512) >= profile.maxConnections(256));
+		}
+
+		AmazonS3Utils.createS3("s3://zarr-n5-demo/foo.zarr", S3ClientProfile.HIGH_THROUGHPUT, 128, builder -> {
+			builder.credentialsProvider(AnonymousCredentialsProvider.create());
+		}).close();
+	}
+
+	@Test
+	public void testClientProfileOverrides() {
+
+		// the profile's timeouts reach the client
+		try (final S3Client s3 = AmazonS3Utils.createS3("s3://zarr-n5-demo/foo.zarr", S3ClientProfile.LOW_LATENCY, 8, builder -> {
+			builder.credentialsProvider(AnonymousCredentialsProvider.create());
+		})) {
+			final ClientOverrideConfiguration overrides = s3.serviceClientConfiguration().overrideConfiguration();
+			assertEquals(Optional.of(Duration.ofSeconds(30)), overrides.apiCallTimeout());
+			assertEquals(Optional.of(Duration.ofSeconds(5)), overrides.apiCallAttemptTimeout());
+		}
+
+		// overrides set before the profile are kept
+		final S3ClientBuilder builder = S3Client.builder();
+		builder.overrideConfiguration(ClientOverrideConfiguration.builder()
+				.putHeader("x-n5-test", "1")
+				.apiCallTimeout(Duration.ofSeconds(7))
+				.build());
+		S3ClientProfile.LOW_LATENCY.configure(8).accept(builder);
+		final ClientOverrideConfiguration overrides = builder.overrideConfiguration();
+		assertEquals(Collections.singletonList("1"), overrides.headers().get("x-n5-test"));
+		assertEquals(Optional.of(Duration.ofSeconds(7)), overrides.apiCallTimeout());
+		assertEquals(Optional.of(Duration.ofSeconds(5)), overrides.apiCallAttemptTimeout());
+	}
+
+	@Test
+	public void testMd5Hex() {
+
+		assertEquals("d41d8cd98f00b204e9800998ecf8427e", AmazonS3Utils.md5Hex(new byte[0]));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", AmazonS3Utils.md5Hex("abc".getBytes()));
+	}
+
 }
@@ -0,0 +1,77 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class AttributeBatchTest {
+
+	private static JsonObject attributes(final int value) {
+
+		final JsonObject attributes = new JsonObject();
+		attributes.addProperty("value", value);
+		return attributes;
+	}
+
+	@Test
+	public void testCoalesce() {
+
+		final List<String> writes = new ArrayList<>();
+		final AttributeBatch batch = new AttributeBatch((path, attributes) -> writes.add(path + "=" + attributes), 0);
+
+		for (int i = 0; i < 12; i++)
+			batch.put("a", attributes(i));
+		batch.put("b", attributes(1));
+
+		assertEquals(11, batch.get("a").getAsJsonObject().get("value").getAsInt());
+		assertTrue(writes.isEmpty());
+
+		batch.flush();
+		assertEquals(2, writes.size());
+		assertEquals("a={\"value\":11}", writes.get(0));
+		assertNull(batch.get("a"));
+
+		batch.put("c/d", attributes(0));
+		batch.discard("c");
+		batch.close();
+		assertEquals(2, writes.size());
+	}
+
+	@Test
+	public void testWriteNow() {
+
+		final List<String> writes = new ArrayList<>();
+		final AttributeBatch batch = new AttributeBatch((path, attributes) -> writes.add(path + "=" + attributes), 0);
+
+		batch.put("a", attributes(1));
+		batch.writeNow("a", null);
+		assertNull(batch.get("a"));
+		assertEquals(1, writes.size());
+		assertEquals("a=null", writes.get(0));
+
+		/* the dropped attributes are not written later */
+		batch.close();
+		assertEquals(1, writes.size());
+	}
+
+	@Test
+	public void testDebounce() throws InterruptedException {
+
+		final CountDownLatch written = new CountDownLatch(1);
+		final AttributeBatch batch = new AttributeBatch((path, attributes) -> written.countDown(), 10);
+
+		batch.put("a", attributes(0));
+		batch.put("a", attributes(1));
+		assertTrue(written.await(10, TimeUnit.SECONDS));
+		batch.close();
+	}
+}
@@ -0,0 +1,67 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.junit.Test;
+
+public class BlockBatchTest {
+
+	@Test
+	public void testGridPositions() {
+
+		final List<long[]> positions = N5AmazonS3Reader.gridPositions(new long[]{1, 5}, new long[]{2, 6});
+		assertEquals(4, positions.size());
+		assertArrayEquals(new long[]{1, 5}, positions.get(0));
+		assertArrayEquals(new long[]{2, 5}, positions.get(1));
+		assertArrayEquals(new long[]{1, 6}, positions.get(2));
+		assertArrayEquals(new long[]{2, 6}, positions.get(3));
+
+		assertEquals(0, N5AmazonS3Reader.gridPositions(new long[]{1, 5}, new long[]{0, 6}).size());
+	}
+
+	@Test
+	public void testBatch() {
+
+		final List<long[]> positions = N5AmazonS3Reader.gridPositions(new long[]{0}, new long[]{99});
+		final Set<Long> read = new HashSet<>();
+		try (final BlockBatch<byte[]> batch = new BlockBatch<>(
+				positions.iterator(),
+				p -> p[0] % 2 == 0 ? new ByteArrayDataBlock(new int[]{1}, p, new byte[]{(byte)p[0]}) : null,
+				4)) {
+			while (batch.hasNext()) {
+				final BlockBatch.Result<byte[]> result = batch.next();
+				if (result.gridPosition[0] % 2 == 0)
+					assertEquals(result.gridPosition[0], result.block.getData()[0]);
+				else
+					assertNull(result.block);
+				read.add(result.gridPosition[0]);
+			}
+		}
+		assertEquals(100, read.size());
+	}
+
+	@Test
+	public void testFailure() {
+
+		final List<long[]> positions = N5AmazonS3Reader.gridPositions(new long[]{0}, new long[]{99});
+		final BlockBatch<byte[]> batch = new BlockBatch<>(
+				positions.iterator(),
+				p -> {
+					throw new N5Exception.N5IOException("failed");
+				},
+				4);
+		assertThrows(N5Exception.N5IOException.class, () -> {
+			while (batch.hasNext())
+				batch.next();
+		});
+	}
+}
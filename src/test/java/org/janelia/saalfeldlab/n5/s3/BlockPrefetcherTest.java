@@ -0,0 +1,66 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BlockPrefetcherTest {
+
+	private final List<String> prefetched = new ArrayList<>();
+	private final List<String> cancelled = new ArrayList<>();
+	private final BlockPrefetcher prefetcher = new BlockPrefetcher(2, prefetched::add, cancelled::add);
+	private final long[] gridSize = {10, 10};
+
+	@Test
+	public void testSweep() {
+
+		prefetcher.observe("ds", new long[]{0, 0}, gridSize, null);
+		prefetcher.observe("ds", new long[]{2, 0}, gridSize, null);
+		prefetched.clear();
+		cancelled.clear();
+
+		prefetcher.observe("ds", new long[]{4, 0}, gridSize, null);
+		assertEquals(Arrays.asList("ds/6/0", "ds/8/0"), prefetched);
+
+		// the sweep continues, the next prediction is outside of the grid
+		prefetched.clear();
+		prefetcher.observe("ds", new long[]{6, 0}, gridSize, null);
+		assertTrue(prefetched.isEmpty());
+		assertTrue(cancelled.isEmpty());
+
+		// the sweep breaks, the unused prediction is cancelled
+		prefetcher.observe("ds", new long[]{0, 5}, gridSize, null);
+		assertEquals(Arrays.asList("ds/8/0"), cancelled);
+	}
+
+	@Test
+	public void testNeighbourhood() {
+
+		prefetcher.observe("ds", new long[]{5, 5}, gridSize, null);
+		prefetcher.observe("ds", new long[]{5, 6}, gridSize, null);
+		assertEquals(
+				new HashSet<>(Arrays.asList("ds/4/6", "ds/6/6", "ds/5/5", "ds/5/7")),
+				new HashSet<>(prefetched));
+
+		// a jump cancels the neighbourhood
+		prefetcher.observe("ds", new long[]{0, 0}, gridSize, null);
+		assertEquals(new HashSet<>(prefetched), new HashSet<>(cancelled));
+	}
+
+	@Test
+	public void testPresence() {
+
+		final BlockPresenceIndex presence = new BlockPresenceIndex(gridSize);
+		presence.add(3, 0);
+
+		prefetcher.observe("ds", new long[]{1, 0}, gridSize, presence);
+		prefetcher.observe("ds", new long[]{2, 0}, gridSize, presence);
+		assertEquals(Arrays.asList("ds/3/0"), prefetched);
+	}
+}
@@ -0,0 +1,52 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BlockPresenceIndexTest {
+
+	@Test
+	public void testFromKeys() {
+
+		final long[] gridSize = BlockPresenceIndex.gridSize(new long[]{100, 50, 7}, new int[]{10, 10, 4});
+		assertArrayEquals(new long[]{10, 5, 2}, gridSize);
+
+		final BlockPresenceIndex index = BlockPresenceIndex.fromKeys(gridSize, new String[]{
+				"attributes.json",
+				"0/",
+				"0/0/",
+				"0/0/0",
+				"9/4/1",
+				"3/2",
+				"a/b/c",
+				"3/2/1/0"});
+
+		assertEquals(2, index.cardinality());
+		assertTrue(index.contains(0, 0, 0));
+		assertTrue(index.contains(9, 4, 1));
+		assertFalse(index.contains(3, 2, 1));
+		assertFalse(index.contains(0, 0, 1));
+
+		// outside of the grid is not known to be absent
+		assertTrue(index.contains(10, 0, 0));
+	}
+
+	@Test
+	public void testAddRemove() {
+
+		final BlockPresenceIndex index = new BlockPresenceIndex(new long[]{100, 100});
+		index.add(99, 99);
+		index.add(0, 64);
+		index.add(0, 64);
+		assertEquals(2, index.cardinality());
+
+		index.remove(99, 99);
+		assertFalse(index.contains(99, 99));
+		assertTrue(index.contains(0, 64));
+		assertEquals(1, index.cardinality());
+	}
+}
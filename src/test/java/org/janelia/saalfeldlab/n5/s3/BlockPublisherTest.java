@@ -0,0 +1,147 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class BlockPublisherTest {
+
+	private static class ChunkedSubscriber implements Subscriber<DataBlock<byte[]>> {
+
+		final long chunk;
+		final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+		final AtomicLong outstanding = new AtomicLong();
+		final AtomicBoolean overflow = new AtomicBoolean();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Subscription subscription;
+
+		ChunkedSubscriber(final long chunk) {
+
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void onSubscribe(final Subscription subscription) {
+
+			this.subscription = subscription;
+			outstanding.addAndGet(chunk);
+			subscription.request(chunk);
+		}
+
+		@Override
+		public void onNext(final DataBlock<byte[]> block) {
+
+			if (outstanding.decrementAndGet() < 0)
+				overflow.set(true);
+			received.add(block.getGridPosition()[0]);
+			if (outstanding.get() == 0) {
+				outstanding.addAndGet(chunk);
+				subscription.request(chunk);
+			}
+		}
+
+		@Override
+		public void onError(final Throwable t) {
+
+			error.set(t);
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+
+			done.countDown();
+		}
+	}
+
+	private static BlockPublisher<byte[]> publisher(final int n, final boolean ordered) {
+
+		final List<long[]> positions = N5AmazonS3Reader.gridPositions(new long[]{0}, new long[]{n - 1});
+		return new BlockPublisher<>(
+				positions::iterator,
+				/* every seventh block is missing */
+				p -> p[0] % 7 == 0 ? null : new ByteArrayDataBlock(new int[]{1}, p, new byte[]{1}),
+				ordered,
+				8,
+				16);
+	}
+
+	@Test
+	public void testOrdered() throws InterruptedException {
+
+		final ChunkedSubscriber subscriber = new ChunkedSubscriber(5);
+		publisher(1000, true).subscribe(subscriber);
+		assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+
+		assertNull(subscriber.error.get());
+		assertFalse(subscriber.overflow.get());
+		assertEquals(1000 - 143, subscriber.received.size());
+		final List<Long> sorted = new ArrayList<>(subscriber.received);
+		Collections.sort(sorted);
+		assertEquals(sorted, subscriber.received);
+	}
+
+	@Test
+	public void testUnordered() throws InterruptedException {
+
+		final ChunkedSubscriber subscriber = new ChunkedSubscriber(3);
+		publisher(1000, false).subscribe(subscriber);
+		assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+
+		assertNull(subscriber.error.get());
+		assertFalse(subscriber.overflow.get());
+		assertEquals(1000 - 143, subscriber.received.size());
+	}
+
+	@Test
+	public void testListingOffRequestingThread() throws InterruptedException {
+
+		final AtomicReference<Thread> listingThread = new AtomicReference<>();
+		final List<long[]> positions = N5AmazonS3Reader.gridPositions(new long[]{0}, new long[]{9});
+		final BlockPublisher<byte[]> publisher = new BlockPublisher<>(
+				() -> {
+					listingThread.set(Thread.currentThread());
+					return positions.iterator();
+				},
+				p -> new ByteArrayDataBlock(new int[]{1}, p, new byte[]{1}),
+				true,
+				2,
+				4);
+
+		final ChunkedSubscriber subscriber = new ChunkedSubscriber(4);
+		publisher.subscribe(subscriber);
+		assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+
+		assertNull(subscriber.error.get());
+		assertEquals(10, subscriber.received.size());
+		assertNotSame(Thread.currentThread(), listingThread.get());
+	}
+
+	@Test
+	public void testGridPositionsFromKeys() {
+
+		final List<String> keys = Arrays.asList("attributes.json", "0/", "0/0", "0/1", "1/0", "1/0/2");
+		final List<String> positions = new ArrayList<>();
+		BlockPublisher.gridPositions(keys.iterator(), 2).forEachRemaining(p -> positions.add(Arrays.toString(p)));
+		assertEquals(Arrays.asList("[0, 0]", "[0, 1]", "[1, 0]"), positions);
+	}
+}
@@ -0,0 +1,56 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class ConsolidatedMetadataTest {
+
+	@Test
+	public void testCanonicalPath() {
+
+		assertEquals("", ConsolidatedMetadata.canonicalPath("/"));
+		assertEquals("", ConsolidatedMetadata.canonicalPath(""));
+		assertEquals("a/b", ConsolidatedMetadata.canonicalPath("/a/b/"));
+	}
+
+	@Test
+	public void testPutRemove() {
+
+		final JsonObject groups = new JsonObject();
+		final JsonObject attributes = new JsonObject();
+		attributes.addProperty("dimensions", 1);
+		ConsolidatedMetadata.put(groups, "a/b/c", attributes);
+		ConsolidatedMetadata.add(groups, "a/d");
+
+		assertTrue(groups.has(""));
+		assertTrue(groups.has("a"));
+		assertTrue(groups.has("a/b"));
+		assertTrue(ConsolidatedMetadata.isDataset(groups.get("a/b/c")));
+		assertFalse(ConsolidatedMetadata.isDataset(groups.get("a/d")));
+
+		final String[] children = ConsolidatedMetadata.children(groups, "a");
+		Arrays.sort(children);
+		assertArrayEquals(new String[]{"b", "d"}, children);
+		assertArrayEquals(new String[]{"a"}, ConsolidatedMetadata.children(groups, ""));
+
+		// adding an existing group keeps its attributes
+		ConsolidatedMetadata.add(groups, "a/b/c");
+		assertTrue(ConsolidatedMetadata.isDataset(groups.get("a/b/c")));
+
+		ConsolidatedMetadata.remove(groups, "a/b");
+		assertFalse(groups.has("a/b"));
+		assertFalse(groups.has("a/b/c"));
+		assertTrue(groups.has("a/d"));
+
+		ConsolidatedMetadata.remove(groups, "");
+		assertEquals(0, groups.size());
+	}
+}
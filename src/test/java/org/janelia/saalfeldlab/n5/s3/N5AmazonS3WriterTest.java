@@ -0,0 +1,240 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.readdata.ReadData;
+import org.janelia.saalfeldlab.n5.s3.mock.MockS3Factory;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonParser;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+/**
+ * Tests of the features of {@link N5AmazonS3Reader} and
+ * {@link N5AmazonS3Writer} that go beyond the n5 API, against the mock s3
+ * server.
+ */
+@SuppressWarnings("deprecation")
+public class N5AmazonS3WriterTest {
+
+	@BeforeClass
+	public static void before() {
+
+		MockS3Factory.getOrCreateS3();
+		assumeTrue("mock s3 server not running", MockS3Factory.isMinioServerRunning());
+	}
+
+	private final List<N5AmazonS3Writer> writers = new ArrayList<>();
+
+	private N5AmazonS3Writer createWriter() {
+
+		final N5AmazonS3Writer n5 = new N5AmazonS3Writer(
+				MockS3Factory.getOrCreateS3(),
+				N5AmazonS3Tests.tempBucketName(),
+				N5AmazonS3Tests.tempContainerPath(),
+				false);
+		writers.add(n5);
+		return n5;
+	}
+
+	private static N5AmazonS3Reader createReader(final N5AmazonS3Writer n5) {
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)n5.getKeyValueAccess();
+		return new N5AmazonS3Reader(kva.getS3(), kva.getBucketName(), n5.getURI().getPath(), false);
+	}
+
+	@After
+	public void after() {
+
+		// deletes the buckets that were created
+		writers.forEach(n5 -> n5.getKeyValueAccess().delete("/"));
+	}
+
+	@Test
+	public void testBlockPresenceIndex() {
+
+		final N5AmazonS3Writer n5 = createWriter();
+		n5.createDataset("d", new long[]{4, 4}, new int[]{2, 2}, DataType.INT8, new RawCompression());
+		final DatasetAttributes attributes = n5.getDatasetAttributes("d");
+		n5.writeBlock("d", attributes, new ByteArrayDataBlock(new int[]{2, 2}, new long[]{1, 0}, new byte[4]));
+
+		final N5AmazonS3Reader reader = createReader(n5);
+		final BlockPresenceIndex index = reader.indexBlockPresence("d");
+		assertEquals(1, index.cardinality());
+		assertNotNull(reader.readBlock("d", attributes, 1, 0));
+		assertNull(reader.readBlock("d", attributes, 0, 0));
+
+		// keys of shards are not block grid positions
+		n5.createGroup("sharded");
+		n5.setAttribute("sharded", "codecs", JsonParser.parseString("[{\"name\":\"sharding_indexed\"}]"));
+		assertThrows(N5Exception.class, () -> reader.indexBlockPresence("sharded"));
+		assertThrows(N5Exception.class, () -> reader.streamBlocks("sharded", attributes, true, 2, 1 << 20));
+
+		// only the sharding codec itself makes a dataset sharded
+		assertFalse(N5AmazonS3Reader.isSharded(JsonParser.parseString(
+				"{\"codecs\":[{\"name\":\"bytes\",\"configuration\":{\"note\":\"sharding_indexed\"}}]}")));
+		assertFalse(N5AmazonS3Reader.isSharded(JsonParser.parseString("{\"codecs\":[{\"name\":\"reshard\"}]}")));
+	}
+
+	@Test
+	public void testPrefetchSharded() throws InterruptedException {
+
+		final N5AmazonS3Writer n5 = createWriter();
+		n5.createDataset("d", new long[]{8}, new int[]{2}, DataType.INT8, new RawCompression());
+		n5.createDataset("sharded", new long[]{8}, new int[]{2}, DataType.INT8, new RawCompression());
+		final DatasetAttributes attributes = n5.getDatasetAttributes("d");
+		for (long i = 0; i < 4; ++i) {
+			n5.writeBlock("d", attributes, new ByteArrayDataBlock(new int[]{2}, new long[]{i}, new byte[2]));
+			n5.writeBlock("sharded", attributes, new ByteArrayDataBlock(new int[]{2}, new long[]{i}, new byte[2]));
+		}
+		n5.setAttribute("sharded", "codecs", JsonParser.parseString("[{\"name\":\"sharding_indexed\"}]"));
+
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)n5.getKeyValueAccess();
+		final S3Client s3 = kva.getS3();
+		final Set<String> requested = ConcurrentHashMap.newKeySet();
+		final S3Client recording = (S3Client)Proxy.newProxyInstance(
+				S3Client.class.getClassLoader(),
+				new Class<?>[]{S3Client.class},
+				(proxy, method, args) -> {
+					if (args != null && args.length > 0 && args[0] instanceof GetObjectRequest)
+						requested.add(((GetObjectRequest)args[0]).key());
+					try {
+						return method.invoke(s3, args);
+					} catch (final InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+
+		final N5AmazonS3Reader reader = new N5AmazonS3Reader(recording, kva.getBucketName(), n5.getURI().getPath(), false);
+		final AmazonS3KeyValueAccess readerKva = (AmazonS3KeyValueAccess)reader.getKeyValueAccess();
+		readerKva.setReadParallelism(1);
+		reader.enablePrefetch(2, 1 << 20, 4);
+
+		// prefetches run in the order they are queued, a prefetch of the sharded dataset would run first
+		for (long i = 0; i < 3; ++i)
+			reader.readBlock("sharded", attributes, i);
+		for (long i = 0; i < 3; ++i)
+			reader.readBlock("d", attributes, i);
+		for (int i = 0; i < 100 && requested.stream().noneMatch(key -> key.endsWith("/d/3")); ++i)
+			Thread.sleep(50);
+
+		assertTrue(requested.stream().anyMatch(key -> key.endsWith("/d/3")));
+		assertFalse(requested.stream().anyMatch(key -> key.endsWith("/sharded/3")));
+		readerKva.close();
+	}
+
+	@Test
+	public void testReadBlocks() {
+
+		final N5AmazonS3Writer n5 = createWriter();
+		n5.createDataset("d", new long[]{8}, new int[]{2}, DataType.INT8, new RawCompression());
+		final DatasetAttributes attributes = n5.getDatasetAttributes("d");
+		n5.writeBlock("d", attributes, new ByteArrayDataBlock(new int[]{2}, new long[]{0}, new byte[]{1, 2}));
+		n5.writeBlock("d", attributes, new ByteArrayDataBlock(new int[]{2}, new long[]{2}, new byte[]{3, 4}));
+
+		final N5AmazonS3Reader reader = createReader(n5);
+		final List<long[]> positions = N5AmazonS3Reader.gridPositions(new long[]{0}, new long[]{3});
+		int n = 0;
+		try (final CloseableIterator<DataBlock<byte[]>> blocks = reader.readBlocks("d", attributes, positions, 2)) {
+			while (blocks.hasNext()) {
+				blocks.next();
+				n++;
+			}
+		}
+		assertEquals(2, n);
+
+		/* stop early */
+		final CloseableIterator<DataBlock<byte[]>> blocks = reader.readBlocks("d", attributes, positions, 2);
+		assertTrue(blocks.hasNext());
+		blocks.next();
+		blocks.close();
+		assertFalse(blocks.hasNext());
+	}
+
+	@Test
+	public void testConsolidatedMetadata() {
+
+		final N5AmazonS3Writer n5 = createWriter();
+		n5.createGroup("a/b");
+		n5.setAttribute("a", "key", 1);
+		n5.setConsolidateMetadata(true);
+
+		final N5AmazonS3Reader reader = createReader(n5);
+		assertTrue(reader.useConsolidatedMetadata(0, TimeUnit.SECONDS));
+		assertTrue(reader.exists("a/b"));
+		assertArrayEquals(new String[]{"b"}, reader.list("a"));
+		assertEquals(Integer.valueOf(1), reader.getAttribute("a", "key", Integer.class));
+
+		/* callers get copies */
+		reader.getAttributes("a").getAsJsonObject().addProperty("key", 2);
+		assertEquals(Integer.valueOf(1), reader.getAttribute("a", "key", Integer.class));
+
+		/* changes are seen after revalidation */
+		n5.setAttribute("a", "key", 3);
+		n5.createGroup("a/c");
+		assertEquals(Integer.valueOf(3), reader.getAttribute("a", "key", Integer.class));
+		assertTrue(reader.exists("a/c"));
+
+		/* removing the container does not leave consolidated metadata behind */
+		final String consolidated = n5.getKeyValueAccess().compose(n5.getURI(), ConsolidatedMetadata.CONSOLIDATED_ATTRIBUTES_JSON);
+		assertTrue(n5.getKeyValueAccess().isFile(consolidated));
+		n5.remove("/");
+		assertFalse(n5.getKeyValueAccess().isFile(consolidated));
+	}
+
+	@Test
+	public void testMove() {
+
+		final N5AmazonS3Writer n5 = createWriter();
+		n5.createGroup("a/b");
+		n5.setAttribute("a", "key", 1);
+
+		n5.move("a", "c", 2, null);
+		assertFalse(n5.exists("a"));
+		assertTrue(n5.exists("c/b"));
+		assertEquals(Integer.valueOf(1), n5.getAttribute("c", "key", Integer.class));
+	}
+
+	@Test
+	public void testClose() {
+
+		final N5AmazonS3Writer n5 = createWriter();
+		final AmazonS3KeyValueAccess kva = (AmazonS3KeyValueAccess)n5.getKeyValueAccess();
+		kva.setIoPolicy(new WriteBehindIoPolicy(new S3IoPolicy.Unsafe(kva.getS3(), kva.getBucketName()), 1 << 20, 1));
+		n5.enableAttributeBatching(TimeUnit.HOURS.toMillis(1));
+		n5.setAttribute("/", "key", 1);
+
+		// pending attributes are written, the shared key value access stays open
+		n5.close();
+		kva.write(kva.compose(n5.getURI(), "after-close"), ReadData.from(new byte[]{1}));
+		kva.flush();
+		assertTrue(kva.isFile(kva.compose(n5.getURI(), "after-close")));
+		assertEquals(Integer.valueOf(1), createReader(n5).getAttribute("/", "key", Integer.class));
+		kva.close();
+	}
+}
@@ -0,0 +1,95 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class S3ExecutorsTest {
+
+	@After
+	public void after() {
+
+		System.clearProperty(S3Executors.VIRTUAL_THREADS_PROPERTY);
+	}
+
+	@Test
+	public void testPlatformThreads() throws InterruptedException, ExecutionException {
+
+		testBounded();
+	}
+
+	@Test
+	public void testVirtualThreads() throws InterruptedException, ExecutionException {
+
+		assumeTrue("virtual threads require Java 21", S3Executors.virtualThreadsAvailable());
+		System.setProperty(S3Executors.VIRTUAL_THREADS_PROPERTY, "true");
+		assertTrue(S3Executors.useVirtualThreads());
+		testBounded();
+	}
+
+	@Test
+	public void testVirtualThreadsFallback() throws InterruptedException, ExecutionException {
+
+		assumeFalse(S3Executors.virtualThreadsAvailable());
+		System.setProperty(S3Executors.VIRTUAL_THREADS_PROPERTY, "true");
+		assertFalse(S3Executors.useVirtualThreads());
+		testBounded();
+	}
+
+	private static void testBounded() throws InterruptedException, ExecutionException {
+
+		final int parallelism = 4;
+		final ExecutorService executor = S3Executors.newBoundedExecutor("n5-s3-test", parallelism);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		final List<Future<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			final int value = i;
+			futures.add(executor.submit(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				Thread.sleep(1);
+				running.decrementAndGet();
+				return value;
+			}));
+		}
+
+		for (int i = 0; i < futures.size(); i++)
+			assertEquals(i, (int)futures.get(i).get());
+		assertTrue(maxRunning.get() <= parallelism);
+
+		// interrupts blocked tasks and returns the tasks that did not start
+		final CountDownLatch started = new CountDownLatch(parallelism);
+		for (int i = 0; i < parallelism; i++) {
+			executor.submit(() -> {
+				started.countDown();
+				Thread.sleep(60000);
+				return null;
+			});
+		}
+		started.await();
+		final AtomicInteger ran = new AtomicInteger();
+		executor.execute(ran::incrementAndGet);
+		executor.execute(ran::incrementAndGet);
+		assertEquals(2, executor.shutdownNow().size());
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, ran.get());
+		assertThrows(RejectedExecutionException.class, () -> executor.execute(ran::incrementAndGet));
+	}
+}
@@ -0,0 +1,51 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class S3KeyRangeTest {
+
+	@Test
+	public void testRangesPartitionKeys() {
+
+		final List<String> samples = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			samples.add("ds/" + i + "/");
+		samples.sort(null);
+
+		final List<S3KeyRange> ranges = S3KeyRange.rangesFromSamples("bucket", "ds/", samples, 4);
+		assertEquals(4, ranges.size());
+		assertNull(ranges.get(0).getStartAfter());
+		assertNull(ranges.get(3).getEndInclusive());
+
+		// every key, including directory markers, is in exactly one range
+		final List<String> keys = new ArrayList<>(Arrays.asList("ds/", "ds/attributes.json"));
+		for (final String sample : samples) {
+			keys.add(sample);
+			keys.add(sample + "0");
+			keys.add(sample + "19/7");
+		}
+		for (final String key : keys) {
+			int count = 0;
+			for (final S3KeyRange range : ranges)
+				if (range.contains(key))
+					count++;
+			assertEquals(key, 1, count);
+		}
+	}
+
+	@Test
+	public void testFewSamples() {
+
+		final List<S3KeyRange> ranges = S3KeyRange.rangesFromSamples("bucket", "ds/", Arrays.asList("ds/"), 8);
+		assertEquals(1, ranges.size());
+		assertNull(ranges.get(0).getStartAfter());
+		assertNull(ranges.get(0).getEndInclusive());
+	}
+}
@@ -0,0 +1,73 @@
+package org.janelia.saalfeldlab.n5.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.s3.S3ObjectRewrite.PlannedPart;
+import org.janelia.saalfeldlab.n5.s3.S3ObjectRewrite.Segment;
+import org.junit.Test;
+
+public class S3ObjectRewriteTest {
+
+	private static final long MIN = 10;
+	private static final long MAX = 25;
+
+	private static void assertValid(final List<PlannedPart> parts, final long expectedLength) {
+
+		long length = 0;
+		for (int i = 0; i < parts.size(); i++) {
+			final PlannedPart part = parts.get(i);
+			if (i < parts.size() - 1)
+				assertTrue("part " + i + " too short", part.length() >= MIN);
+			if (part.serverSideCopy) {
+				assertEquals(1, part.segments.size());
+				assertTrue("copy part " + i + " too long", part.length() <= MAX);
+			}
+			length += part.length();
+		}
+		assertEquals(expectedLength, length);
+	}
+
+	@Test
+	public void testPlanInnerUpdate() {
+
+		// 100 bytes, replace 2 bytes at 40
+		final List<PlannedPart> parts = S3ObjectRewrite.plan(Arrays.asList(
+				Segment.copy(0, 40),
+				Segment.data(new byte[2]),
+				Segment.copy(42, 58)), MIN, MAX);
+
+		assertValid(parts, 100);
+		assertTrue(parts.get(0).serverSideCopy);
+		assertFalse(parts.stream().allMatch(p -> p.serverSideCopy));
+	}
+
+	@Test
+	public void testPlanShortCopyRanges() {
+
+		// copy ranges below the minimum part size must be uploaded
+		final List<PlannedPart> parts = S3ObjectRewrite.plan(Arrays.asList(
+				Segment.data(new byte[3]),
+				Segment.copy(3, 4),
+				Segment.data(new byte[3]),
+				Segment.copy(10, 4)), MIN, MAX);
+
+		assertValid(parts, 14);
+		assertTrue(parts.stream().noneMatch(p -> p.serverSideCopy));
+	}
+
+	@Test
+	public void testPlanLargeCopy() {
+
+		final List<PlannedPart> parts = S3ObjectRewrite.plan(Arrays.asList(
+				Segment.data(new byte[5]),
+				Segment.copy(5, 95),
+				Segment.data(new byte[1])), MIN, MAX);
+
+		assertValid(parts, 101);
+	}
+}
@@ -0,0 +1,100 @@
+package org.janelia.saalfeldlab.n5.s3.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
+import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Writer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Tests {@link N5AmazonS3Reader#enableAttributeRevalidation(long, TimeUnit)}
+ * against a backend, with a client that counts unchanged responses and
+ * reports objects below {@code forbidden/} as 403 like a bucket without list
+ * permission.
+ */
+@SuppressWarnings("deprecation")
+public class BackendAttributeRevalidationTests {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static S3Client s3;
+	private static N5AmazonS3Writer writer;
+	private static String bucketName;
+
+	private static final AtomicInteger notModified = new AtomicInteger();
+
+	@BeforeClass
+	public static void setup() {
+
+		s3 = BackendS3Factory.getOrCreateS3();
+		bucketName = "n5-test-" + Long.toUnsignedString(random.nextLong());
+		writer = new N5AmazonS3Writer(s3, bucketName, "revalidate", false);
+	}
+
+	@AfterClass
+	public static void teardown() {
+
+		if (writer != null)
+			writer.getKeyValueAccess().delete("/"); // delete the bucket and everything in it
+	}
+
+	private static S3Client observingClient() {
+
+		return (S3Client)Proxy.newProxyInstance(
+				S3Client.class.getClassLoader(),
+				new Class<?>[]{S3Client.class},
+				(proxy, method, args) -> {
+					if (method.getName().equals("getObjectAsBytes") && args[0] instanceof GetObjectRequest
+							&& ((GetObjectRequest)args[0]).key().contains("forbidden/"))
+						throw S3Exception.builder().statusCode(403).message("Access Denied").build();
+					try {
+						return method.invoke(s3, args);
+					} catch (final InvocationTargetException e) {
+						if (e.getCause() instanceof S3Exception && ((S3Exception)e.getCause()).statusCode() == 304)
+							notModified.incrementAndGet();
+						throw e.getCause();
+					}
+				});
+	}
+
+	@Test
+	public void testRevalidation() {
+
+		writer.createGroup("g");
+		writer.setAttribute("g", "key", 1);
+
+		final N5AmazonS3Reader reader = new N5AmazonS3Reader(observingClient(), bucketName, "revalidate", false);
+		reader.enableAttributeRevalidation(0, TimeUnit.SECONDS);
+
+		// unchanged attributes are confirmed without a body
+		assertEquals(Integer.valueOf(1), reader.getAttribute("g", "key", Integer.class));
+		notModified.set(0);
+		assertEquals(Integer.valueOf(1), reader.getAttribute("g", "key", Integer.class));
+		assertTrue(notModified.get() > 0);
+
+		// changed attributes are reloaded
+		writer.setAttribute("g", "key", 2);
+		assertEquals(Integer.valueOf(2), reader.getAttribute("g", "key", Integer.class));
+
+		// deleted attributes are absent
+		writer.remove("g");
+		assertNull(reader.getAttributes("g"));
+
+		// 403 is treated like 404
+		assertNull(reader.getAttributes("forbidden"));
+	}
+}
@@ -1,17 +1,31 @@
 package org.janelia.saalfeldlab.n5.s3.backend;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import org.janelia.saalfeldlab.n5.N5Exception;
 import org.janelia.saalfeldlab.n5.readdata.ReadData;
 import org.janelia.saalfeldlab.n5.readdata.VolatileReadData;
 import org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess;
 import org.janelia.saalfeldlab.n5.s3.S3IoPolicy;
+import org.janelia.saalfeldlab.n5.s3.StagedWriteBehindIoPolicy;
+import org.janelia.saalfeldlab.n5.s3.WriteBehindIoPolicy;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -24,6 +38,15 @@ public class BackendIoPolicyTests {
 	private static final SecureRandom random = new SecureRandom();
 	static final String UNSAFE_KEY = "unsafe/obj";
 	static final String ETAG_KEY = "etag/obj";
+	static final String WRITE_BEHIND_KEY = "write-behind/obj";
+	static final String SKIP_KEY = "skip/obj";
+	static final String CONDITIONAL_KEY = "conditional/obj";
+	static final String TAIL_KEY = "tail/obj";
+	static final String EMPTY_TAIL_KEY = "tail/empty";
+	static final String STREAMING_KEY = "streaming/obj";
+	static final String READ_INTO_KEY = "readinto/obj";
+	static final String UPLOAD_KEY = "upload/obj";
+	static final String STAGED_KEY = "staged/obj";
 
 	protected static S3Client s3;
 	protected static AmazonS3KeyValueAccess kva;
@@ -109,4 +132,312 @@ public class BackendIoPolicyTests {
 		}
 	}
 
+	@Test
+	public void testWriteBehind() throws IOException {
+
+		final S3IoPolicy.EtagMatch delegate = new S3IoPolicy.EtagMatch(s3, bucketName);
+		final WriteBehindIoPolicy policy = new WriteBehindIoPolicy(delegate, 16, 2);
+		final byte[] data1 = {0, 1, 2, 3, 4};
+		final byte[] data2 = {5, 6, 7};
+
+		// the last write wins, and is visible before it is uploaded
+		policy.write(WRITE_BEHIND_KEY, ReadData.from(data1));
+		policy.write(WRITE_BEHIND_KEY, ReadData.from(data2));
+		try (VolatileReadData result = policy.read(WRITE_BEHIND_KEY)) {
+			assertArrayEquals(data2, result.allBytes());
+		}
+
+		policy.flush();
+		try (VolatileReadData result = delegate.read(WRITE_BEHIND_KEY)) {
+			assertArrayEquals(data2, result.allBytes());
+		}
+
+		// deleting waits for pending uploads
+		policy.write(WRITE_BEHIND_KEY, ReadData.from(data1));
+		policy.delete(WRITE_BEHIND_KEY);
+		policy.close();
+		assertThrows(N5Exception.N5NoSuchKeyException.class, () -> {
+			try (VolatileReadData result = delegate.read(WRITE_BEHIND_KEY)) {
+				result.allBytes();
+			}
+		});
+	}
+
+	@Test
+	public void testWriteBehindFailure() throws IOException {
+
+		// the default delegate only logs failed writes, write-behind must still report them
+		final String missingBucket = bucketName + "-missing";
+		final WriteBehindIoPolicy policy = new WriteBehindIoPolicy(new S3IoPolicy.EtagMatch(s3, missingBucket), 16, 1);
+		policy.write(WRITE_BEHIND_KEY, ReadData.from(new byte[]{1, 2, 3}));
+		final IOException e = assertThrows(IOException.class, policy::flush);
+		assertTrue(e.getMessage().contains(WRITE_BEHIND_KEY));
+		policy.close();
+
+		// writes after close fail instead of being dropped
+		assertThrows(IOException.class, () -> policy.write(WRITE_BEHIND_KEY, ReadData.from(new byte[]{1})));
+		assertFalse(policy.isPending(WRITE_BEHIND_KEY));
+	}
+
+	@Test
+	public void testStagedReplay() throws IOException {
+
+		final Path stagingDirectory = Files.createTempDirectory("n5-s3-staging");
+		final byte[] data = {0, 1, 2, 3, 4};
+
+		// uploads to a missing bucket fail, the staged file remains as after a crash
+		final StagedWriteBehindIoPolicy failing = new StagedWriteBehindIoPolicy(
+				new S3IoPolicy.EtagMatch(s3, bucketName + "-missing"), stagingDirectory, 1024, 1);
+		failing.write(STAGED_KEY, ReadData.from(data));
+		assertThrows(IOException.class, failing::close);
+		assertEquals(1, stagedFiles(stagingDirectory));
+
+		// a new instance on the same directory replays the upload and removes the staged file
+		final S3IoPolicy.EtagMatch delegate = new S3IoPolicy.EtagMatch(s3, bucketName);
+		final StagedWriteBehindIoPolicy replaying = new StagedWriteBehindIoPolicy(delegate, stagingDirectory, 1024, 1);
+		replaying.close();
+		try (VolatileReadData result = delegate.read(STAGED_KEY)) {
+			assertArrayEquals(data, result.allBytes());
+		}
+		assertEquals(0, stagedFiles(stagingDirectory));
+		Files.delete(stagingDirectory);
+	}
+
+	private static long stagedFiles(final Path directory) throws IOException {
+
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	@Test
+	public void testSkipUnchanged() throws IOException {
+
+		final S3IoPolicy.Unsafe policy = new S3IoPolicy.Unsafe(s3, bucketName);
+		policy.setSkipUnchanged(true);
+		final byte[] data1 = {0, 1, 2, 3, 4};
+		final byte[] data2 = {5, 6, 7};
+
+		policy.write(SKIP_KEY, ReadData.from(data1));
+		assertEquals(0, policy.getSkippedWrites());
+
+		policy.write(SKIP_KEY, ReadData.from(data1));
+		assertEquals(1, policy.getSkippedWrites());
+		assertEquals(data1.length, policy.getSkippedBytes());
+
+		policy.write(SKIP_KEY, ReadData.from(data2));
+		assertEquals(1, policy.getSkippedWrites());
+		try (VolatileReadData result = policy.read(SKIP_KEY)) {
+			assertArrayEquals(data2, result.allBytes());
+		}
+
+		// conditional writes skip unchanged data, also in read-modify-write
+		final S3IoPolicy.ConditionalWrite conditional = new S3IoPolicy.ConditionalWrite(s3, bucketName);
+		conditional.setSkipUnchanged(true);
+		conditional.write(SKIP_KEY, ReadData.from(data2));
+		assertEquals(1, conditional.getSkippedWrites());
+		conditional.update(SKIP_KEY, current -> current);
+		assertEquals(2, conditional.getSkippedWrites());
+		conditional.update(SKIP_KEY, current -> ReadData.from(data1));
+		assertEquals(2, conditional.getSkippedWrites());
+		try (VolatileReadData result = conditional.read(SKIP_KEY)) {
+			assertArrayEquals(data1, result.allBytes());
+		}
+	}
+
+	@Test
+	public void testTailPrefetch() throws IOException {
+
+		final S3IoPolicy.EtagMatch policy = new S3IoPolicy.EtagMatch(s3, bucketName);
+		policy.setTailPrefetch(4);
+		final byte[] data = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+		policy.write(TAIL_KEY, ReadData.from(data));
+		policy.write(EMPTY_TAIL_KEY, ReadData.from(new byte[0]));
+
+		try (VolatileReadData result = policy.read(TAIL_KEY)) {
+			assertEquals(data.length, result.length());
+			assertArrayEquals(data, result.allBytes());
+		}
+
+		// larger than the object
+		policy.setTailPrefetch(64);
+		try (VolatileReadData result = policy.read(TAIL_KEY)) {
+			assertEquals(data.length, result.length());
+		}
+
+		try (VolatileReadData result = policy.read(EMPTY_TAIL_KEY)) {
+			assertEquals(0, result.length());
+		}
+	}
+
+	@Test
+	public void testStreamingRead() throws IOException {
+
+		final S3IoPolicy.EtagMatch policy = new S3IoPolicy.EtagMatch(s3, bucketName);
+		policy.setStreamingThreshold(0);
+		final byte[] data = new byte[1 << 16];
+		random.nextBytes(data);
+		policy.write(STREAMING_KEY, ReadData.from(data));
+
+		try (VolatileReadData result = policy.read(STREAMING_KEY)) {
+			final byte[] streamed = new byte[data.length];
+			try (DataInputStream in = new DataInputStream(result.inputStream())) {
+				in.readFully(streamed);
+			}
+			assertArrayEquals(data, streamed);
+		}
+
+		try (VolatileReadData result = policy.read(STREAMING_KEY)) {
+			assertArrayEquals(data, result.allBytes());
+		}
+	}
+
+	@Test
+	public void testReadInto() throws IOException {
+
+		final S3IoPolicy.Unsafe policy = new S3IoPolicy.Unsafe(s3, bucketName);
+		final byte[] data = new byte[1 << 12];
+		random.nextBytes(data);
+		policy.write(READ_INTO_KEY, ReadData.from(data));
+
+		// range into a heap buffer at an offset
+		final ByteBuffer heap = ByteBuffer.allocate(data.length + 8);
+		heap.position(8);
+		assertEquals(100, policy.readInto(READ_INTO_KEY, 16, 100, heap));
+		assertEquals(108, heap.position());
+		assertArrayEquals(Arrays.copyOfRange(data, 16, 116), Arrays.copyOfRange(heap.array(), 8, 108));
+
+		// whole object into a direct buffer
+		final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		assertEquals(data.length, policy.readInto(READ_INTO_KEY, 0, -1, direct));
+		direct.flip();
+		final byte[] read = new byte[data.length];
+		direct.get(read);
+		assertArrayEquals(data, read);
+
+		// too small
+		assertThrows(N5Exception.N5IOException.class, () -> policy.readInto(READ_INTO_KEY, 0, -1, ByteBuffer.allocate(16)));
+		assertThrows(N5Exception.N5NoSuchKeyException.class, () -> policy.readInto(READ_INTO_KEY + "-missing", 0, -1, ByteBuffer.allocate(16)));
+	}
+
+	@Test
+	public void testStreamingUpload() throws IOException {
+
+		final S3IoPolicy.Unsafe policy = new S3IoPolicy.Unsafe(s3, bucketName);
+		policy.setUploadPartSize(0);
+		assertEquals(S3IoPolicy.Unsafe.MIN_UPLOAD_PART_SIZE, policy.getUploadPartSize());
+
+		// unknown length, fits into one part
+		final byte[] small = new byte[1000];
+		random.nextBytes(small);
+		policy.write(UPLOAD_KEY, ReadData.from(new ByteArrayInputStream(small)));
+		try (VolatileReadData result = policy.read(UPLOAD_KEY)) {
+			assertArrayEquals(small, result.allBytes());
+		}
+
+		// unknown length, multipart upload
+		final byte[] large = new byte[2 * S3IoPolicy.Unsafe.MIN_UPLOAD_PART_SIZE + 1000];
+		random.nextBytes(large);
+		policy.write(UPLOAD_KEY, ReadData.from(new ByteArrayInputStream(large)));
+		try (VolatileReadData result = policy.read(UPLOAD_KEY)) {
+			assertArrayEquals(large, result.allBytes());
+		}
+
+		// multipart ETags are of the form "<digest>-<number of parts>"
+		assertTrue(AmazonS3KeyValueAccess.headObjectRequest(s3, bucketName, UPLOAD_KEY, null).eTag().contains("-"));
+
+		// known length
+		policy.write(UPLOAD_KEY, ReadData.from(new ByteArrayInputStream(small), small.length));
+		try (VolatileReadData result = policy.read(UPLOAD_KEY)) {
+			assertArrayEquals(small, result.allBytes());
+		}
+
+		// known length larger than a part, streamed with one PUT
+		policy.write(UPLOAD_KEY, ReadData.from(large));
+		try (VolatileReadData result = policy.read(UPLOAD_KEY)) {
+			assertArrayEquals(large, result.allBytes());
+		}
+		assertFalse(AmazonS3KeyValueAccess.headObjectRequest(s3, bucketName, UPLOAD_KEY, null).eTag().contains("-"));
+	}
+
+	@Test
+	public void testConditionalWrite() throws IOException {
+
+		final S3IoPolicy.ConditionalWrite policy = new S3IoPolicy.ConditionalWrite(s3, bucketName, 0);
+		final S3IoPolicy.Unsafe other = new S3IoPolicy.Unsafe(s3, bucketName);
+		final byte[] data1 = {0, 1, 2, 3, 4};
+		final byte[] data2 = {5, 6, 7};
+
+		// observed absence, someone else creates the object
+		policy.delete(CONDITIONAL_KEY);
+		assertThrows(N5Exception.N5ConcurrentModificationException.class, () -> policy.runConditionally(() -> {
+			assertThrows(N5Exception.N5NoSuchKeyException.class, () -> policy.read(CONDITIONAL_KEY).allBytes());
+			other.write(CONDITIONAL_KEY, ReadData.from(data1));
+			policy.write(CONDITIONAL_KEY, ReadData.from(data2));
+		}));
+
+		// observed ETag, someone else overwrites the object
+		assertThrows(N5Exception.N5ConcurrentModificationException.class, () -> policy.runConditionally(() -> {
+			policy.read(CONDITIONAL_KEY).allBytes();
+			other.write(CONDITIONAL_KEY, ReadData.from(data2));
+			policy.write(CONDITIONAL_KEY, ReadData.from(data1));
+		}));
+
+		// observed ETag, someone else deletes the object
+		assertThrows(N5Exception.N5ConcurrentModificationException.class, () -> policy.runConditionally(() -> {
+			policy.read(CONDITIONAL_KEY).allBytes();
+			other.delete(CONDITIONAL_KEY);
+			policy.write(CONDITIONAL_KEY, ReadData.from(data1));
+		}));
+
+		// reads outside of a scope do not make writes conditional
+		other.write(CONDITIONAL_KEY, ReadData.from(data2));
+		policy.read(CONDITIONAL_KEY).allBytes();
+		other.write(CONDITIONAL_KEY, ReadData.from(data1));
+		policy.write(CONDITIONAL_KEY, ReadData.from(data2));
+		try (VolatileReadData result = policy.read(CONDITIONAL_KEY)) {
+			assertArrayEquals(data2, result.allBytes());
+		}
+
+		// read-modify-write
+		policy.update(CONDITIONAL_KEY, current -> {
+			final byte[] bytes = current.allBytes();
+			bytes[0] = 42;
+			return ReadData.from(bytes);
+		});
+		try (VolatileReadData result = policy.read(CONDITIONAL_KEY)) {
+			assertArrayEquals(new byte[]{42, 6, 7}, result.allBytes());
+		}
+
+		// read-modify-write of an object that is deleted after the first read is retried
+		final S3IoPolicy.ConditionalWrite retrying = new S3IoPolicy.ConditionalWrite(s3, bucketName, 2);
+		final AtomicInteger attempts = new AtomicInteger();
+		retrying.update(CONDITIONAL_KEY, current -> {
+			if (attempts.getAndIncrement() == 0) {
+				assertArrayEquals(new byte[]{42, 6, 7}, current.allBytes());
+				other.delete(CONDITIONAL_KEY);
+			} else
+				assertNull(current);
+			return ReadData.from(data1);
+		});
+		assertEquals(2, attempts.get());
+		try (VolatileReadData result = policy.read(CONDITIONAL_KEY)) {
+			assertArrayEquals(data1, result.allBytes());
+		}
+
+		// a read by another thread in a scope does not make writes of this thread conditional
+		final Thread reader = new Thread(() -> policy.runConditionally(() -> policy.read(CONDITIONAL_KEY).allBytes()));
+		reader.start();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		other.write(CONDITIONAL_KEY, ReadData.from(data1));
+		policy.write(CONDITIONAL_KEY, ReadData.from(data2));
+		try (VolatileReadData result = policy.read(CONDITIONAL_KEY)) {
+			assertArrayEquals(data2, result.allBytes());
+		}
+	}
+
 }